@@ -5,10 +5,14 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +46,7 @@ import net.anfoya.mail.model.Message;
 import net.anfoya.mail.model.Section;
 import net.anfoya.mail.model.Tag;
 import net.anfoya.mail.model.Thread;
+import net.anfoya.mail.service.ContactIndex;
 import net.anfoya.mail.service.MailException;
 import net.anfoya.mail.service.MailService;
 import net.anfoya.tag.javafx.scene.section.SectionListPane;
@@ -67,6 +72,7 @@ public class Controller<S extends Section, T extends Tag, H extends Thread, M ex
 	private SectionListPane<S, T> sectionListPane;
 	private ThreadListPane<T, H> threadListPane;
 	private final List<ThreadPane<S, T, H, M, C>> threadPanes;
+	private final Prefetcher<H, M> prefetcher;
 
 	public Controller(MailService<S, T, H, M, C> mailService
 			, NotificationService notificationService
@@ -78,6 +84,7 @@ public class Controller<S extends Section, T extends Tag, H extends Thread, M ex
 		this.settings = settings;
 
 		threadPanes = new ArrayList<>();
+		prefetcher = new Prefetcher<>(mailService);
 
 		inbox = mailService.getSpecialTag(SpecialTag.INBOX);
 		trash = mailService.getSpecialTag(SpecialTag.TRASH);
@@ -89,6 +96,10 @@ public class Controller<S extends Section, T extends Tag, H extends Thread, M ex
 
 	public void init() {
 		mailService.addOnUpdateMessage(() -> Platform.runLater(() -> refreshAfterUpdateMessage()));
+		mailService.addOnUpdateThreadList(threads -> {
+			Platform.runLater(() -> refreshAfterThreadListUpdate(threads));
+			return null;
+		});
 		// mailService.addOnUpdateTagOrSection(() -> Platform.runLater(() -> refreshTags()));
 		mailService.connected().addListener((ov, o, n) -> {
 			if (!o && n) {
@@ -229,6 +240,8 @@ public class Controller<S extends Section, T extends Tag, H extends Thread, M ex
 	}
 
 	private void view(final Set<H> threads) {
+		prefetcher.prefetch(threadListPane.getItems(), threads);
+
 		if (mailBrowser.modeProperty().get() != Mode.FULL) {
 			return;
 		}
@@ -441,6 +454,8 @@ public class Controller<S extends Section, T extends Tag, H extends Thread, M ex
 		}
 		LOGGER.debug("refreshAfterThreadListLoad");
 
+		prefetcher.prefetch(threadListPane.getItems(), threadListPane.getSelectedThreads());
+
 		//TODO review if necessary, maybe not worth fixing few inconsistencies in item counts
 		final Set<T> tags = threadListPane.getThreadsTagIds()
 				.stream()
@@ -630,6 +645,15 @@ public class Controller<S extends Section, T extends Tag, H extends Thread, M ex
 			@Override
 			protected Void call() throws Exception {
 				mailService.send(draft);
+
+				// ranks recipients in autocomplete, once the message is sent
+				final Address[] recipients = draft.getMimeMessage().getAllRecipients();
+				if (recipients != null) {
+					final ContactIndex<C> contactIndex = mailService.getContactIndex();
+					for(final Address a: recipients) {
+						contactIndex.use(((InternetAddress) a).getAddress());
+					}
+				}
 				return null;
 			}
 		};
@@ -693,6 +717,7 @@ public class Controller<S extends Section, T extends Tag, H extends Thread, M ex
 		if (loadThreadsTask != null && loadThreadsTask.isRunning()) {
 			loadThreadsTask.cancel();
 		}
+		prefetcher.cancel();
 
 		final Set<H> previousThreads = this.threads;
 
@@ -733,6 +758,26 @@ public class Controller<S extends Section, T extends Tag, H extends Thread, M ex
 		ThreadPool.getDefault().submit(PoolPriority.MAX, "load thread list", loadThreadsTask);
 	}
 
+	private void refreshAfterThreadListUpdate(final Set<H> threads) {
+		if (loadThreadsTask != null && loadThreadsTask.isRunning()) {
+			// a newer list is on its way
+			return;
+		}
+		LOGGER.info("thread list update detected");
+
+		// patched with the server list, no need to load it again
+		final Set<H> all = new LinkedHashSet<>(threads);
+		synchronized (this.threads) {
+			// if unread list we keep the older items even if they are not marked as "unread" anymore
+			if (isUnreadList.get()) {
+				all.addAll(this.threads);
+			}
+			this.threads.clear();
+			this.threads.addAll(all);
+		}
+		threadListPane.setAll(all, isUnreadList.get());
+	}
+
 	private boolean isNewFilter(T selected, Set<T> includes, Set<T> excludes, String pattern) {
 		boolean newFilter = selected == null && this.selected.isNotNull().get()
 				|| selected != null && !selected.equals(this.selected.get())
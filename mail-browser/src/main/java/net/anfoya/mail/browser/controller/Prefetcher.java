@@ -0,0 +1,121 @@
+package net.anfoya.mail.browser.controller;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.anfoya.java.util.concurrent.ThreadPool;
+import net.anfoya.java.util.concurrent.ThreadPool.PoolPriority;
+import net.anfoya.mail.model.Message;
+import net.anfoya.mail.model.Thread;
+import net.anfoya.mail.service.MailException;
+import net.anfoya.mail.service.MailService;
+
+/**
+ * Warms the message cache in the background for the threads the user is likely to open next:
+ * the neighbours of the current selection, then the first unread threads of the list.
+ */
+public class Prefetcher<H extends Thread, M extends Message> {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Prefetcher.class);
+
+	private static final int NEIGHBOURS = 2;
+	private static final int UNREAD_MAX = 10;
+	private static final int CONCURRENCY = 2;
+	// downloaded bytes per prefetch, messages already in the cache don't count
+	private static final long BYTES_MAX = 8 * 1024 * 1024;
+
+	private final MailService<?, ?, H, M, ?> mailService;
+	private final AtomicLong generation;
+
+	public Prefetcher(final MailService<?, ?, H, M, ?> mailService) {
+		this.mailService = mailService;
+
+		generation = new AtomicLong();
+	}
+
+	public void prefetch(final List<H> threads, final Set<H> selected) {
+		final long generation = this.generation.incrementAndGet();
+
+		final Queue<H> queue = new ConcurrentLinkedQueue<>(getCandidates(threads, selected));
+		if (queue.isEmpty()) {
+			return;
+		}
+
+		final AtomicLong bytes = new AtomicLong();
+		for(int i=0, n=Math.min(CONCURRENCY, queue.size()); i<n; i++) {
+			ThreadPool.getDefault().submit(PoolPriority.MIN, "prefetch messages", () -> run(generation, queue, bytes));
+		}
+	}
+
+	public void cancel() {
+		generation.incrementAndGet();
+	}
+
+	private Set<H> getCandidates(final List<H> threads, final Set<H> selected) {
+		final Set<H> candidates = new LinkedHashSet<>();
+
+		// next threads first, that's where archive moves the selection
+		for(final H thread: selected) {
+			final int index = threads.indexOf(thread);
+			if (index == -1) {
+				continue;
+			}
+			for(int i=1; i<=NEIGHBOURS; i++) {
+				if (index + i < threads.size()) {
+					candidates.add(threads.get(index + i));
+				}
+				if (index - i >= 0) {
+					candidates.add(threads.get(index - i));
+				}
+			}
+		}
+
+		final List<H> unread = new ArrayList<>();
+		for(final H thread: threads) {
+			if (unread.size() >= UNREAD_MAX) {
+				break;
+			}
+			if (thread.isUnread()) {
+				unread.add(thread);
+			}
+		}
+		candidates.addAll(unread);
+
+		candidates.removeAll(selected);
+		candidates.removeIf(t -> Thread.PAGE_TOKEN_ID.equals(t.getId()) || t.getMessageIds().isEmpty());
+
+		return candidates;
+	}
+
+	private void run(final long generation, final Queue<H> queue, final AtomicLong bytes) {
+		H thread;
+		while (generation == this.generation.get()
+				&& bytes.get() < BYTES_MAX
+				&& (thread = queue.poll()) != null) {
+			final Set<String> fetchIds = new HashSet<>();
+			for(final String id: thread.getMessageIds()) {
+				if (!mailService.isCached(id)) {
+					fetchIds.add(id);
+				}
+			}
+			try {
+				mailService.getMessages(thread.getMessageIds(), m -> {
+					if (fetchIds.contains(m.getId())) {
+						bytes.addAndGet(m.getSize());
+					}
+					return null;
+				}, id -> null);
+			} catch (final MailException e) {
+				LOGGER.warn("prefetch thread {}", thread.getId(), e);
+			}
+		}
+	}
+}
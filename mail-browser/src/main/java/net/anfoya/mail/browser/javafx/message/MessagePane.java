@@ -245,14 +245,18 @@ public class MessagePane<M extends Message, C extends Contact> extends VBox {
 		showMessageTimeline.play();
 	}
 
-	public synchronized void load() {
+	public void load() {
+		load(null);
+	}
+
+	public synchronized void load(final M loaded) {
 		if (loadTask != null) {
 			loadTask.cancel();
 		}
 		loadTask = new Task<String>() {
 			@Override
 			protected String call() throws MailException, MessagingException, IOException, URISyntaxException {
-				message = mailService.getMessage(messageId);
+				message = loaded != null? loaded: mailService.getMessage(messageId);
 				return reader.toHtml(message.getMimeMessage());
 			}
 		};
@@ -2,7 +2,9 @@ package net.anfoya.mail.browser.javafx.thread;
 
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
@@ -258,16 +260,20 @@ public class ThreadPane<S extends Section, T extends Tag, H extends Thread, M ex
 		}
 
 		// added messages
+		final Map<String, MessagePane<M, C>> addedPanes = new LinkedHashMap<>();
 		int index = 0;
 		for(final Iterator<String> i=new LinkedList<>(thread.getMessageIds()).descendingIterator(); i.hasNext();) {
 			final String id = i.next();
 			@SuppressWarnings("unchecked")
 			final MessagePane<M, C> messagePane = index >= messagePanes.size()? null: (MessagePane<M, C>) messagePanes.get(index);
 			if (messagePane == null || !id.equals(messagePane.getMessageId())) {
-				messagePanes.add(index, createMessagePane(id));
+				final MessagePane<M, C> addedPane = createMessagePane(id);
+				addedPanes.put(id, addedPane);
+				messagePanes.add(index, addedPane);
 			}
 			index++;
 		}
+		loadMessages(addedPanes);
 	}
 
 	private MessagePane<M, C> createMessagePane(final String id) {
@@ -277,11 +283,37 @@ public class ThreadPane<S extends Section, T extends Tag, H extends Thread, M ex
 		messagePane.setOnOpenUrl(openUrlCallback);
 		messagePane.setExpanded(false);
 		messagePane.onContainAttachment(() -> showIcon(ATTACH_ICON));
-		messagePane.load();
 
 		return messagePane;
 	}
 
+	private void loadMessages(final Map<String, MessagePane<M, C>> panes) {
+		if (panes.isEmpty()) {
+			return;
+		}
+
+		// whole conversation in one request, each pane is fed as soon as its message is ready
+		final String desc = "load messages";
+		final Task<Void> task = new Task<Void>() {
+			@Override protected Void call() throws MailException {
+				mailService.getMessages(panes.keySet(), m -> {
+					panes.get(m.getId()).load(m);
+					return null;
+				}, id -> {
+					// loaded on its own, with its own error handling
+					panes.get(id).load();
+					return null;
+				});
+				return null;
+			}
+		};
+		task.setOnFailed(e -> {
+			LOGGER.error(desc, e.getSource().getException());
+			panes.values().forEach(p -> p.load());
+		});
+		ThreadPool.getDefault().submit(PoolPriority.MAX, desc, task);
+	}
+
 	private void showIcon(final Image icon) {
 		for(final Node n: iconBox.getChildren()) {
 			if (n instanceof ImageView && ((ImageView)n).getImage() == icon) {
@@ -297,9 +329,13 @@ public class ThreadPane<S extends Section, T extends Tag, H extends Thread, M ex
 		messagePanes.clear();
 
 		if (!thread.getMessageIds().isEmpty()) {
+			final Map<String, MessagePane<M, C>> panes = new LinkedHashMap<>();
 			for(final String id: thread.getMessageIds()) {
-				messagePanes.add(0, createMessagePane(id));
+				final MessagePane<M, C> pane = createMessagePane(id);
+				panes.put(id, pane);
+				messagePanes.add(0, pane);
 			}
+			loadMessages(panes);
 			MessagePane<M, C> messagePane = (MessagePane<M, C>) messagePanes.get(0);
 			messagePane.setExpanded(true);
 			if (messagePanes.size() == 1) {
@@ -1,7 +1,9 @@
 package net.anfoya.mail.browser.javafx.threadlist;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
@@ -260,10 +262,15 @@ public class ThreadListPane<T extends Tag, H extends Thread> extends BorderPane
 	}
 
 	public Set<String> getThreadsTagIds() {
-		return getItems()
-				.stream()
-				.flatMap(t -> t.getTagIds().stream())
-				.collect(Collectors.toSet());
+		// threads mostly share their tag sets, each distinct instance is read once
+		final Set<Set<String>> tagIdSets = Collections.newSetFromMap(new IdentityHashMap<>());
+		final Set<String> tagIds = new HashSet<>();
+		for(final H thread: getItems()) {
+			if (tagIdSets.add(thread.getTagIds())) {
+				tagIds.addAll(thread.getTagIds());
+			}
+		}
+		return tagIds;
 	}
 
 	public void setOnUpdatePattern(final Runnable callback) {
@@ -242,6 +242,7 @@ public class MailClient extends Application {
 		stage.show();
 
 		mailService.startListening();
+		stage.iconifiedProperty().addListener((ov, o, n) -> mailService.setForeground(!n));
 	}
 
 	private void refreshTitle(final Stage stage, MailBrowser<?, ?, ?, ?, ?> browser) {
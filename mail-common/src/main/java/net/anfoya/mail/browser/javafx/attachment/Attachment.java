@@ -3,6 +3,7 @@ package net.anfoya.mail.browser.javafx.attachment;
 import java.awt.Desktop;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 
 import javax.mail.MessagingException;
@@ -14,8 +15,6 @@ import javax.mail.internet.MimeUtility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.sun.mail.util.BASE64DecoderStream;
-
 import net.anfoya.mail.model.Contact;
 import net.anfoya.mail.model.Message;
 import net.anfoya.mail.model.Section;
@@ -72,7 +71,7 @@ public class Attachment<M extends Message> {
 			}
 			return path;
 		} else if (part instanceof MimeBodyPart
-				&& part.getContent() instanceof BASE64DecoderStream
+				&& part.getContent() instanceof InputStream
 				&& part.getDisposition() == null || MimeBodyPart.ATTACHMENT.equalsIgnoreCase(part.getDisposition())) {
 			final MimeBodyPart bodyPart = (MimeBodyPart) part;
 			final String filename = MimeUtility.decodeText(bodyPart.getFileName());
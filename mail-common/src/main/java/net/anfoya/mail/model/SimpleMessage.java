@@ -1,5 +1,6 @@
 package net.anfoya.mail.model;
 
+import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
 
@@ -27,6 +28,15 @@ public abstract class SimpleMessage implements Message {
 		return draft;
 	}
 
+	@Override
+	public int getSize() {
+		try {
+			return mimeMessage == null? 0: Math.max(0, mimeMessage.getSize());
+		} catch (final MessagingException e) {
+			return 0;
+		}
+	}
+
 	@Override
 	public MimeMessage getMimeMessage() {
 		return mimeMessage;
@@ -3,12 +3,10 @@ package net.anfoya.mail.composer.javafx;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
+import java.util.Collections;
 import java.util.Properties;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
 
 import javax.mail.Address;
 import javax.mail.Message.RecipientType;
@@ -52,6 +50,7 @@ import net.anfoya.mail.mime.MessageHelper;
 import net.anfoya.mail.mime.MessageReader;
 import net.anfoya.mail.model.Contact;
 import net.anfoya.mail.model.Message;
+import net.anfoya.mail.service.ContactIndex;
 import net.anfoya.mail.service.MailService;
 
 public class MailComposer<M extends Message, C extends Contact> extends Stage {
@@ -76,7 +75,7 @@ public class MailComposer<M extends Message, C extends Contact> extends Stage {
 	private final BooleanProperty editedProperty;
 	private Timer autosaveTimer;
 
-	private final Map<String, C> addressContacts;
+	private volatile ContactIndex<C> contactIndex;
 
 	private final Button saveButton;
 
@@ -108,7 +107,7 @@ public class MailComposer<M extends Message, C extends Contact> extends Stage {
 		this.settings = settings;
 
 		// load contacts from server
-		addressContacts = new ConcurrentHashMap<>();
+		contactIndex = new ContactIndex<>(Collections.emptySet());
 		initContacts();
 
 		mainPane = (BorderPane) getScene().getRoot();
@@ -190,18 +189,16 @@ public class MailComposer<M extends Message, C extends Contact> extends Stage {
 	}
 
 	private void initContacts() {
-		final Task<Set<C>> contactTask = new Task<Set<C>>() {
-			@Override protected Set<C> call() throws Exception {
-				return mailService.getContacts();
+		final Task<ContactIndex<C>> contactTask = new Task<ContactIndex<C>>() {
+			@Override protected ContactIndex<C> call() throws Exception {
+				return mailService.getContactIndex();
 			}
 		};
 		contactTask.setOnSucceeded(e -> {
-			for(final C c: contactTask.getValue()) {
-				addressContacts.put(c.getEmail(), c);
-			}
-			toListBox.setAddressContacts(addressContacts);
-			ccListBox.setAddressContacts(addressContacts);
-			bccListBox.setAddressContacts(addressContacts);
+			contactIndex = contactTask.getValue();
+			toListBox.setContactIndex(contactIndex);
+			ccListBox.setContactIndex(contactIndex);
+			bccListBox.setContactIndex(contactIndex);
 
 			final C contact = mailService.getContact();
 			if (contact.getFullname().isEmpty()) {
@@ -442,9 +439,9 @@ public class MailComposer<M extends Message, C extends Contact> extends Stage {
 		}
 
 		for(final String address: toListBox.getRecipients()) {
-			if (addressContacts.containsKey(address)) {
+			if (contactIndex.get(address) != null) {
 				try {
-					message.addRecipient(RecipientType.TO, new InternetAddress(address, addressContacts.get(address).getFullname()));
+					message.addRecipient(RecipientType.TO, new InternetAddress(address, contactIndex.get(address).getFullname()));
 				} catch (final UnsupportedEncodingException e) {
 					message.addRecipient(RecipientType.TO, new InternetAddress(address));
 				}
@@ -453,9 +450,9 @@ public class MailComposer<M extends Message, C extends Contact> extends Stage {
 			}
 		}
 		for(final String address: ccListBox.getRecipients()) {
-			if (addressContacts.containsKey(address)) {
+			if (contactIndex.get(address) != null) {
 				try {
-					message.addRecipient(RecipientType.CC, new InternetAddress(address, addressContacts.get(address).getFullname()));
+					message.addRecipient(RecipientType.CC, new InternetAddress(address, contactIndex.get(address).getFullname()));
 				} catch (final UnsupportedEncodingException e) {
 					message.addRecipient(RecipientType.CC, new InternetAddress(address));
 				}
@@ -464,9 +461,9 @@ public class MailComposer<M extends Message, C extends Contact> extends Stage {
 			}
 		}
 		for(final String address: bccListBox.getRecipients()) {
-			if (addressContacts.containsKey(address)) {
+			if (contactIndex.get(address) != null) {
 				try {
-					message.addRecipient(RecipientType.BCC, new InternetAddress(address, addressContacts.get(address).getFullname()));
+					message.addRecipient(RecipientType.BCC, new InternetAddress(address, contactIndex.get(address).getFullname()));
 				} catch (final UnsupportedEncodingException e) {
 					message.addRecipient(RecipientType.BCC, new InternetAddress(address));
 				}
@@ -1,8 +1,7 @@
 package net.anfoya.mail.composer.javafx;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.LinkedHashSet;
-import java.util.Map;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -24,16 +23,20 @@ import net.anfoya.javafx.scene.control.ComboField;
 import net.anfoya.javafx.scene.control.RemoveLabel;
 import net.anfoya.javafx.util.LabelHelper;
 import net.anfoya.mail.model.Contact;
+import net.anfoya.mail.service.ContactIndex;
 
 public class RecipientListPane<C extends Contact> extends HBox {
 	private static final Logger LOGGER = LoggerFactory.getLogger(RecipientListPane.class);
+	private static final int MATCH_MAX = 50;
 
 	private final Label title;
 	private final FlowPane flowPane;
 	private final ComboField<String> comboField;
 	private final Set<String> selectedAdresses;
 
-	private Map<String, C> addressContacts;
+	private ContactIndex<C> contactIndex;
+	private String matchText;
+	private Set<String> matchAddresses;
 
 	private Task<Double> organiseTask;
 	private long organiseTaskId;
@@ -61,7 +64,9 @@ public class RecipientListPane<C extends Contact> extends HBox {
 		organiseTask = null;
 		organiseTaskId = -1;
 
-		addressContacts = new HashMap<>();
+		contactIndex = new ContactIndex<>(Collections.emptySet());
+		matchText = "";
+		matchAddresses = Collections.emptySet();
 		selectedAdresses = new LinkedHashSet<>();
 
 		comboField = new ComboField<>();
@@ -71,11 +76,11 @@ public class RecipientListPane<C extends Contact> extends HBox {
 				public void updateItem(final String address, final boolean empty) {
 					super.updateItem(address, empty);
 					if (!empty) {
-						try {
-							setText(addressContacts.get(address).getFullname() + " (" + addressContacts.get(address).getEmail() + ")");
-						} catch(final Exception e) {
+						final C contact = contactIndex.get(address);
+						if (contact == null) {
 							setText(address);
-							//TODO: debug anita@glorywell.com.hk
+						} else {
+							setText(contact.getFullname() + " (" + contact.getEmail() + ")");
 						}
 					}
 				}
@@ -90,13 +95,16 @@ public class RecipientListPane<C extends Contact> extends HBox {
 		});
 		comboField.focusTraversableProperty().bind(focusTraversableProperty());
 		comboField.setFilter(address -> {
-			if (selectedAdresses.contains(address)) {
+			if (selectedAdresses.contains(address) || !isMatch(address)) {
 				return "";
 			} else {
-				final C contact = addressContacts.get(address);
-				return contact.getFullname() + " " + contact.getEmail();
+				return contactIndex.getText(address);
 			}
 		});
+		// items follow the ranking of the matches, most used contacts first
+		comboField.textProperty().addListener((ov, o, n) -> comboField.setItems(n.isEmpty()
+				? contactIndex.getAddresses()
+				: getMatches(n)));
 
 		flowPane.getChildren().add(comboField);
 
@@ -130,7 +138,8 @@ public class RecipientListPane<C extends Contact> extends HBox {
 	}
 
 	public void addRecipient(final String address) {
-		final String text = addressContacts.containsKey(address)? addressContacts.get(address).getFullname(): address;
+		final C contact = contactIndex.get(address);
+		final String text = contact != null? contact.getFullname(): address;
 		final String tooltip = "remove " + (text.contains("@")? "": "(" + address + ")");
 		final RemoveLabel label = new RemoveLabel(text, tooltip);
 
@@ -155,12 +164,28 @@ public class RecipientListPane<C extends Contact> extends HBox {
 		updateHandler = handler;
 	}
 
-	public void setAddressContacts(final Map<String, C> addressContacts) {
-		if (!this.addressContacts.isEmpty()) {
-			throw new RuntimeException("addressContacts can only be set once");
+	public void setContactIndex(final ContactIndex<C> contactIndex) {
+		if (this.contactIndex.size() != 0) {
+			throw new RuntimeException("contactIndex can only be set once");
 		}
-		this.addressContacts = addressContacts;
-		comboField.setItems(addressContacts.keySet());
+		this.contactIndex = contactIndex;
+		comboField.setItems(contactIndex.getAddresses());
+	}
+
+	private boolean isMatch(final String address) {
+		// the combo asks for each address, matches are looked up once per text
+		final String text = comboField.getText();
+		return text.isEmpty() || getMatches(text).contains(address);
+	}
+
+	private Set<String> getMatches(final String text) {
+		if (!text.equals(matchText)) {
+			final Set<String> addresses = new LinkedHashSet<>();
+			contactIndex.find(text, MATCH_MAX).forEach(c -> addresses.add(c.getEmail()));
+			matchAddresses = addresses;
+			matchText = text;
+		}
+		return matchAddresses;
 	}
 
 	private void remove(final Label label) {
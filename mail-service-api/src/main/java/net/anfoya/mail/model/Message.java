@@ -9,6 +9,7 @@ public interface Message extends Serializable {
 	public String getId();
 	public boolean isDraft();
 	public String getSnippet();
+	public int getSize();
 
 	public MimeMessage getMimeMessage();
 	public void setMimeDraft(MimeMessage mimeDraft);
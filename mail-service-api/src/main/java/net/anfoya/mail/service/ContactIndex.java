@@ -0,0 +1,263 @@
+package net.anfoya.mail.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import net.anfoya.mail.model.Contact;
+
+/**
+ * Immutable index of contacts by address, by prefix of name and address tokens and by trigram.
+ * Matches are ranked by frequency and recency of use, use counts are carried over to the next index of the account.
+ */
+public class ContactIndex<C extends Contact> {
+	private static final Pattern SEPARATORS = Pattern.compile("[\\s.@_+\\-,;:()<>\"']+");
+	private static final int GRAM = 3;
+	private static final double DAY_MS = 24 * 60 * 60 * 1000;
+
+	private static class Token {
+		private final String token;
+		private final int id;
+
+		private Token(final String token, final int id) {
+			this.token = token;
+			this.id = id;
+		}
+	}
+
+	private static class Ids {
+		private int[] ids = new int[4];
+		private int size;
+
+		private void add(final int id) {
+			// ids are added in order, skip grams repeated in the same contact
+			if (size > 0 && ids[size-1] == id) {
+				return;
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+	}
+
+	private static class Usage {
+		private final int count;
+		private final long time;
+
+		private Usage(final int count, final long time) {
+			this.count = count;
+			this.time = time;
+		}
+	}
+
+	private final List<C> contacts;
+	private final String[] texts;
+	private final String[] lowerTexts;
+	private final Map<String, Integer> addressIds;
+	private final Set<String> addresses;
+	private final String[] tokens;
+	private final int[] tokenIds;
+	private final Map<String, int[]> gramIds;
+	private final Map<String, Usage> usages;
+
+	public ContactIndex(final Collection<C> contacts) {
+		this(contacts, null);
+	}
+
+	public ContactIndex(final Collection<C> contacts, final ContactIndex<C> previous) {
+		usages = previous == null? new ConcurrentHashMap<>(): previous.usages;
+
+		// ids follow the text order so that matches are found sorted
+		final List<C> sorted = new ArrayList<>();
+		final Map<String, String> addressTexts = new HashMap<>();
+		final Map<String, String> addressLowerTexts = new HashMap<>();
+		for(final C c: contacts) {
+			if (c.getEmail() != null && !addressTexts.containsKey(c.getEmail())) {
+				final String text = (c.getFullname() == null? "": c.getFullname()) + " " + c.getEmail();
+				addressTexts.put(c.getEmail(), text);
+				addressLowerTexts.put(c.getEmail(), text.toLowerCase());
+				sorted.add(c);
+			}
+		}
+		sorted.sort(Comparator.comparing(c -> addressLowerTexts.get(c.getEmail())));
+		this.contacts = Collections.unmodifiableList(sorted);
+
+		addressIds = new HashMap<>();
+		texts = new String[sorted.size()];
+		lowerTexts = new String[sorted.size()];
+		final List<Token> tokenList = new ArrayList<>();
+		final Map<String, Ids> gramIdLists = new HashMap<>();
+		for(int id=0; id<sorted.size(); id++) {
+			final C c = sorted.get(id);
+			addressIds.put(c.getEmail(), id);
+			texts[id] = addressTexts.get(c.getEmail());
+			lowerTexts[id] = addressLowerTexts.get(c.getEmail());
+
+			final Set<String> contactTokens = new HashSet<>(Arrays.asList(SEPARATORS.split(lowerTexts[id])));
+			contactTokens.add(c.getEmail().toLowerCase());
+			for(final String t: contactTokens) {
+				if (!t.isEmpty()) {
+					tokenList.add(new Token(t, id));
+				}
+			}
+			for(int i=0; i+GRAM<=lowerTexts[id].length(); i++) {
+				gramIdLists.computeIfAbsent(lowerTexts[id].substring(i, i+GRAM), g -> new Ids()).add(id);
+			}
+		}
+		addresses = Collections.unmodifiableSet(new LinkedHashSet<>(sorted.stream().map(Contact::getEmail).collect(Collectors.toList())));
+
+		tokenList.sort(Comparator.comparing(t -> t.token));
+		tokens = new String[tokenList.size()];
+		tokenIds = new int[tokenList.size()];
+		for(int i=0; i<tokens.length; i++) {
+			tokens[i] = tokenList.get(i).token;
+			tokenIds[i] = tokenList.get(i).id;
+		}
+
+		gramIds = new HashMap<>();
+		gramIdLists.forEach((gram, ids) -> gramIds.put(gram, Arrays.copyOf(ids.ids, ids.size)));
+	}
+
+	public int size() {
+		return contacts.size();
+	}
+
+	public List<C> getAll() {
+		return contacts;
+	}
+
+	public Set<String> getAddresses() {
+		return addresses;
+	}
+
+	public C get(final String address) {
+		final Integer id = addressIds.get(address);
+		return id == null? null: contacts.get(id);
+	}
+
+	public String getText(final String address) {
+		final Integer id = addressIds.get(address);
+		return id == null? null: texts[id];
+	}
+
+	public void use(final String address) {
+		final long now = System.currentTimeMillis();
+		usages.compute(address, (a, u) -> new Usage(u == null? 1: u.count + 1, now));
+	}
+
+	public List<C> find(final String text, final int max) {
+		final String lowerText = text.trim().toLowerCase();
+		if (lowerText.isEmpty() || max <= 0) {
+			return Collections.emptyList();
+		}
+
+		final BitSet ids = match(lowerText);
+		final List<C> found = new ArrayList<>(Math.min(max, ids.cardinality()));
+
+		// contacts in use first, by frequency with older uses fading out
+		final long now = System.currentTimeMillis();
+		final Map<Integer, Double> usedScores = new HashMap<>();
+		usages.forEach((address, usage) -> {
+			final Integer id = addressIds.get(address);
+			if (id != null && ids.get(id)) {
+				usedScores.put(id, usage.count / (1 + (now - usage.time) / DAY_MS));
+			}
+		});
+		usedScores.entrySet().stream()
+			.sorted(Map.Entry.<Integer, Double>comparingByValue().reversed())
+			.limit(max)
+			.forEach(e -> {
+				found.add(contacts.get(e.getKey()));
+				ids.clear(e.getKey());
+			});
+
+		// then in text order, starting with the name or the address, stops when enough are found
+		for(int id=ids.nextSetBit(0); id != -1 && found.size() < max; id=ids.nextSetBit(id+1)) {
+			if (lowerTexts[id].startsWith(lowerText) || contacts.get(id).getEmail().toLowerCase().startsWith(lowerText)) {
+				found.add(contacts.get(id));
+				ids.clear(id);
+			}
+		}
+		for(int id=ids.nextSetBit(0); id != -1 && found.size() < max; id=ids.nextSetBit(id+1)) {
+			found.add(contacts.get(id));
+		}
+
+		return found;
+	}
+
+	private BitSet match(final String lowerText) {
+		// every word is the prefix of a token, or a part of the text when it isn't
+		BitSet ids = null;
+		for(final String word: SEPARATORS.split(lowerText)) {
+			if (word.isEmpty()) {
+				continue;
+			}
+			BitSet wordIds = findPrefix(word);
+			if (wordIds.isEmpty()) {
+				wordIds = findPart(word);
+			}
+			if (ids == null) {
+				ids = wordIds;
+			} else {
+				ids.and(wordIds);
+			}
+			if (ids.isEmpty()) {
+				break;
+			}
+		}
+		if (ids == null || ids.isEmpty()) {
+			ids = findPart(lowerText);
+		}
+		return ids;
+	}
+
+	private BitSet findPrefix(final String prefix) {
+		final BitSet ids = new BitSet(contacts.size());
+		int i = Arrays.binarySearch(tokens, prefix);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		for(; i<tokens.length && tokens[i].startsWith(prefix); i++) {
+			ids.set(tokenIds[i]);
+		}
+		return ids;
+	}
+
+	private BitSet findPart(final String part) {
+		final BitSet ids = new BitSet(contacts.size());
+		if (part.length() < GRAM) {
+			return ids;
+		}
+
+		// candidates from the rarest gram, then checked against the text
+		int[] candidates = null;
+		for(int i=0; i+GRAM<=part.length(); i++) {
+			final int[] gramCandidates = gramIds.get(part.substring(i, i+GRAM));
+			if (gramCandidates == null) {
+				return ids;
+			}
+			if (candidates == null || gramCandidates.length < candidates.length) {
+				candidates = gramCandidates;
+			}
+		}
+		for(final int id: candidates) {
+			if (lowerTexts[id].contains(part)) {
+				ids.set(id);
+			}
+		}
+		return ids;
+	}
+}
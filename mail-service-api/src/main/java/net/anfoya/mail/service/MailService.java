@@ -33,10 +33,13 @@ extends TagService<S, T> {
 
 	void startListening();
 	void stopListening();
+	void setForeground(boolean foreground);
 
 	void clearCache();
 
 	void addOnUpdateMessage(final Runnable callback);
+	// called with the new list when the last list found has changed on the server
+	void addOnUpdateThreadList(Callback<Set<H>, Void> callback);
 	void addOnNewMessage(Callback<Set<H>, Void> callback);
 
 	Set<S> getHiddenSections() throws MailException;
@@ -50,6 +53,10 @@ extends TagService<S, T> {
 	void trash(Set<H> threads) throws MailException;
 
 	M getMessage(String id) throws MailException;
+	// true when the message can be loaded without a request to the server
+	boolean isCached(String id);
+	// callbacks run on worker threads, possibly concurrently, ids which can't be loaded are passed to failedCallback
+	void getMessages(Set<String> ids, Callback<M, Void> callback, Callback<String, Void> failedCallback) throws MailException;
 	void remove(M message) throws MailException;
 
 	M createDraft(M message) throws MailException;
@@ -59,6 +66,7 @@ extends TagService<S, T> {
 
 	C getContact();
 	Set<C> getContacts() throws MailException;
+	ContactIndex<C> getContactIndex() throws MailException;
 
 	void persistBytes(String id, byte[] bytes) throws MailException;
 	byte[] readBytes(String id) throws MailException;
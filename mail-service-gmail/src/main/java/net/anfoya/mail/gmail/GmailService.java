@@ -1,15 +1,23 @@
 package net.anfoya.mail.gmail;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import javax.mail.MessagingException;
@@ -25,32 +33,41 @@ import com.google.api.services.gmail.model.Label;
 import com.google.api.services.gmail.model.Message;
 import com.google.api.services.gmail.model.Thread;
 import com.google.gdata.client.contacts.ContactsService;
-import com.google.gdata.data.contacts.ContactEntry;
-import com.google.gdata.data.extensions.Email;
-import com.sun.mail.util.BASE64DecoderStream;
 
 import javafx.beans.property.ReadOnlyBooleanProperty;
 import javafx.beans.property.ReadOnlyBooleanWrapper;
 import javafx.util.Callback;
 import javafx.util.Duration;
+import net.anfoya.java.util.concurrent.ThreadPool;
+import net.anfoya.java.util.concurrent.ThreadPool.PoolPriority;
+import net.anfoya.mail.gmail.cache.QueryCache;
+import net.anfoya.mail.gmail.cache.TinyLfuCache;
 import net.anfoya.mail.gmail.model.GmailContact;
 import net.anfoya.mail.gmail.model.GmailMessage;
 import net.anfoya.mail.gmail.model.GmailMoreThreads;
 import net.anfoya.mail.gmail.model.GmailSection;
 import net.anfoya.mail.gmail.model.GmailTag;
 import net.anfoya.mail.gmail.model.GmailThread;
+import net.anfoya.mail.gmail.model.LabelDictionary;
 import net.anfoya.mail.gmail.service.AuthenticationService;
-import net.anfoya.mail.gmail.service.ContactException;
+import net.anfoya.mail.gmail.service.BatchExecutor;
+import net.anfoya.mail.gmail.service.ChangeSource;
 import net.anfoya.mail.gmail.service.ContactService;
 import net.anfoya.mail.gmail.service.HistoryException;
 import net.anfoya.mail.gmail.service.HistoryService;
 import net.anfoya.mail.gmail.service.LabelException;
 import net.anfoya.mail.gmail.service.LabelService;
+import net.anfoya.mail.gmail.service.LabelTree;
+import net.anfoya.mail.gmail.service.LabelTree.Node;
 import net.anfoya.mail.gmail.service.MessageException;
 import net.anfoya.mail.gmail.service.MessageService;
+import net.anfoya.mail.gmail.service.PollingChangeSource;
+import net.anfoya.mail.gmail.service.QuotaBucket;
+import net.anfoya.mail.gmail.service.RetryExecutor;
 import net.anfoya.mail.gmail.service.ThreadException;
 import net.anfoya.mail.gmail.service.ThreadService;
 import net.anfoya.mail.model.Tag;
+import net.anfoya.mail.service.ContactIndex;
 import net.anfoya.mail.service.MailException;
 import net.anfoya.mail.service.MailService;
 import net.anfoya.tag.model.SpecialSection;
@@ -61,9 +78,12 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 
 	private static final String USER = "me";
 	private static final String DEFAULT = "default";
+	private static final File CACHE_DIR = new File(System.getProperty("user.home") + File.separatorChar + ".fishermail" + File.separatorChar + "cache");
 
 	private static final Duration PULL_PERIOD = Duration.seconds(5);
 
+	private static final long MESSAGE_CACHE_BYTES = 64 * 1024 * 1024;
+
 	private static final GmailTag[] SYSTEM_TAG_ORDER = {
 			GmailTag.INBOX
 			, GmailTag.SOCIAL
@@ -80,20 +100,73 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 			, GmailTag.TRASH
 	};
 
+	// sections of a label tree, reused while its version is the current one
+	private static class TreeSections {
+		private final long version;
+		private final Set<GmailSection> sections;
+		private final Set<GmailSection> hiddenSections;
+
+		private TreeSections(final LabelTree tree) {
+			version = tree.getVersion();
+			final Set<GmailSection> alphaSections = new TreeSet<>();
+			final Set<GmailSection> hiddenSections = new TreeSet<>();
+			for(final Label label: tree.getLabels()) {
+				if (tree.hasChildren(label)) {
+					if (GmailSection.isHidden(label)) {
+						hiddenSections.add(new GmailSection(label));
+					} else {
+						alphaSections.add(new GmailSection(label));
+					}
+				}
+			}
+			sections = new LinkedHashSet<>();
+			sections.add(GmailSection.SYSTEM);
+			sections.addAll(alphaSections);
+			this.hiddenSections = hiddenSections;
+		}
+	}
+
+	private static class ThreadListQuery {
+		private final String key;
+		private final String query;
+		private final int pageMax;
+
+		private ThreadListQuery(final String query, final int pageMax) {
+			this.key = query + " #" + pageMax;
+			this.query = query;
+			this.pageMax = pageMax;
+		}
+	}
+
 	private final ReadOnlyBooleanWrapper connected;
 
 	private final AuthenticationService authService;
+	private RetryExecutor retryExecutor;
 	private LabelService labelService;
 	private MessageService messageService;
 	private ThreadService threadService;
 	private HistoryService historyService;
+	private ChangeSource changeSource;
 	private ContactService contactService;
 
+	private QueryCache queryCache;
+	private final TinyLfuCache<String, GmailMessage> messageCache;
+	private final LabelDictionary labelDictionary;
+	private final Set<String> revalidatingQueries;
+	private final Set<Callback<Set<GmailThread>, Void>> threadListCallBacks;
+
+	// query of the last list found, only its revalidation is notified
+	private volatile ThreadListQuery threadListQuery;
 	private String address;
+	private volatile TreeSections treeSections;
 
 	public GmailService(String appName) {
 		authService = new AuthenticationService(appName);
 		connected = new ReadOnlyBooleanWrapper(false);
+		revalidatingQueries = ConcurrentHashMap.newKeySet();
+		threadListCallBacks = new LinkedHashSet<>();
+		messageCache = new TinyLfuCache<>(MESSAGE_CACHE_BYTES);
+		labelDictionary = new LabelDictionary();
 	}
 
 	@Override
@@ -107,8 +180,12 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 			final Gmail gmail = authService.getGmail();
 			final ContactsService contactsService = authService.getContactsService();
 
-			initServices(gmail, contactsService);
-			initEmailAddress(gmail);
+			try {
+				initServices(gmail, contactsService);
+			} catch (final GMailException e) {
+				authService.fail(e);
+				return;
+			}
 
 			callback.run();
 		});
@@ -119,24 +196,57 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 		authService.setOnAuthFailed(callback);
 	}
 
-	protected void initEmailAddress(Gmail gmail) {
+	protected void initEmailAddress(Gmail gmail) throws GMailException {
 		try {
-			address = gmail.users().getProfile(USER).execute().getEmailAddress();
+			address = retryExecutor.execute(gmail.users().getProfile(USER)).getEmailAddress();
 		} catch (final IOException e) {
-			address = "uknown!";
+			throw new GMailException("get email address", e);
 		}
 	}
 
-	protected void initServices(Gmail gmail, ContactsService contactsService) {
-		messageService = new MessageService(gmail, USER);
-		labelService = new LabelService(gmail, USER);
-		threadService = new ThreadService(gmail, labelService, USER);
-
-		historyService = new HistoryService(gmail, USER);
+	protected void initServices(Gmail gmail, ContactsService contactsService) throws GMailException {
+		retryExecutor = new RetryExecutor(new QuotaBucket());
+		// caches are kept per account, without its address one account could read another's
+		initEmailAddress(gmail);
+
+		final File cacheDir = new File(CACHE_DIR, address);
+		final BatchExecutor batchExecutor = new BatchExecutor(gmail, retryExecutor);
+		messageService = new MessageService(gmail, retryExecutor, batchExecutor, USER, cacheDir);
+		labelService = new LabelService(gmail, retryExecutor, batchExecutor, USER, cacheDir);
+		threadService = new ThreadService(gmail, retryExecutor, batchExecutor, labelService, USER, cacheDir);
+
+		historyService = new HistoryService(gmail, retryExecutor, USER, cacheDir);
+		changeSource = new PollingChangeSource(PULL_PERIOD);
+		queryCache = new QueryCache(cacheDir);
+
+		historyService.addOnHistory(h -> {
+			labelService.update(h);
+			messageService.update(h);
+			queryCache.invalidate();
+			h.stream()
+				.filter(r -> r.getMessagesDeleted() != null)
+				.flatMap(r -> r.getMessagesDeleted().stream())
+				.forEach(d -> messageCache.remove(d.getMessage().getId()));
+			try {
+				threadService.update(h);
+			} catch (final ThreadException e) {
+				LOGGER.error("update cached threads from history", e);
+			}
+		});
 		historyService.addOnUpdateLabel(() -> labelService.clearCache());
+		historyService.addOnResync(() -> {
+			messageService.resync();
+			queryCache.invalidate();
+			try {
+				threadService.reconcile();
+			} catch (final ThreadException e) {
+				LOGGER.error("reconcile cached threads", e);
+			}
+			reloadThreadList();
+		});
 		connected.bind(historyService.disconnected().not());
 
-		contactService = new ContactService(contactsService, DEFAULT).init();
+		contactService = new ContactService(contactsService, DEFAULT, cacheDir).init();
 	}
 
 	@Override
@@ -147,13 +257,14 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 	@Override
 	public void signout() {
 		historyService.stop();
+		contactService.stop();
 		authService.signout();
 		clearCache();
 	}
 
 	@Override
 	public void startListening() {
-		historyService.start(PULL_PERIOD);
+		historyService.start(changeSource);
 	}
 
 	@Override
@@ -161,6 +272,11 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 		historyService.stop();
 	}
 
+	@Override
+	public void setForeground(final boolean foreground) {
+		historyService.setForeground(foreground);
+	}
+
 	@Override
 	public void reconnect() throws GMailException {
 		if (connected().get()) {
@@ -183,7 +299,7 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 	public GmailThread getThread(String id) throws GMailException {
 		try {
 			final Thread thread = threadService.get(Collections.singleton(id), true, null).iterator().next();
-			return new GmailThread(thread);
+			return new GmailThread(thread, labelDictionary);
 		} catch (final ThreadException e) {
 			throw new GMailException("get thread " + id, e);
 		}
@@ -192,9 +308,9 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 	@Override
 	public Set<GmailThread> findThreads(final Set<GmailTag> includes, final Set<GmailTag> excludes, final String pattern, final int pageMax) throws GMailException {
 		try {
-			final Set<GmailThread> threads = new LinkedHashSet<>();
 			if (includes.isEmpty() && pattern.isEmpty()) { //TODO && excludes.isEmpty()) {
-				return threads;
+				threadListQuery = null;
+				return new LinkedHashSet<>();
 			}
 			final StringBuilder query = new StringBuilder("");
 			if (includes.size() > 0) {
@@ -228,20 +344,23 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 				query.append("(").append(p).append(")");
 			}
 
-			for(final Thread t: threadService.find(query.toString(), pageMax)) {
-				if (GmailThread.PAGE_TOKEN_ID.equals(t.getId())) {
-					threads.add(new GmailMoreThreads(pageMax + 1));
-					continue;
-				}
-				if (t.getMessages() == null) {
-					LOGGER.error("no message for thread {}", t.toPrettyString());
-					continue;
+			// serve the last known result for this query and revalidate it in the background
+			final ThreadListQuery listQuery = new ThreadListQuery(query.toString(), pageMax);
+			final String key = listQuery.key;
+			threadListQuery = listQuery;
+			final List<String> ids = queryCache.get(key);
+			final Collection<Thread> found;
+			if (ids == null) {
+				found = threadService.find(query.toString(), pageMax);
+				queryCache.put(key, getIds(found));
+			} else {
+				if (queryCache.isStale(key)) {
+					revalidate(key, query.toString(), pageMax);
 				}
-
-				threads.add(new GmailThread(t));
+				found = getCached(ids);
 			}
 
-			return threads;
+			return toGmailThreads(found, pageMax);
 
 		} catch (final ThreadException | IOException e) {
 			throw new GMailException("find threads for includes=" + includes
@@ -251,15 +370,160 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 		}
 	}
 
+	private Set<GmailThread> toGmailThreads(final Collection<Thread> found, final int pageMax) throws IOException {
+		final Set<GmailThread> threads = new LinkedHashSet<>();
+		for(final Thread t: found) {
+			if (GmailThread.PAGE_TOKEN_ID.equals(t.getId())) {
+				threads.add(new GmailMoreThreads(pageMax + 1));
+				continue;
+			}
+			if (t.getMessages() == null) {
+				LOGGER.error("no message for thread {}", t.toPrettyString());
+				continue;
+			}
+
+			threads.add(new GmailThread(t, labelDictionary));
+		}
+
+		return threads;
+	}
+
+	private List<Thread> getCached(final List<String> ids) throws ThreadException {
+		final Set<String> threadIds = new LinkedHashSet<>(ids);
+		final boolean more = threadIds.remove(GmailThread.PAGE_TOKEN_ID);
+
+		final Map<String, Thread> idThreads = new HashMap<>();
+		for(final Thread t: threadService.get(threadIds, true, more? 0: null)) {
+			idThreads.put(t.getId(), t);
+		}
+
+		final List<Thread> threads = new ArrayList<>();
+		for(final String id: ids) {
+			final Thread t = idThreads.get(id);
+			if (t != null) {
+				threads.add(t);
+			}
+		}
+		return threads;
+	}
+
+	private void revalidate(final String key, final String query, final int pageMax) {
+		if (!revalidatingQueries.add(key)) {
+			return;
+		}
+		ThreadPool.getDefault().submit(PoolPriority.MIN, "revalidate threads for " + query, () -> {
+			try {
+				final Collection<Thread> found = threadService.find(query, pageMax);
+				final ThreadListQuery listQuery = threadListQuery;
+				if (queryCache.put(key, getIds(found)) && listQuery != null && key.equals(listQuery.key)) {
+					LOGGER.info("thread list changed for {}", query);
+					invokeThreadListCallbacks(toGmailThreads(found, pageMax));
+				}
+			} catch (final ThreadException | IOException e) {
+				LOGGER.error("revalidate threads for {}", query, e);
+			} finally {
+				revalidatingQueries.remove(key);
+			}
+		});
+	}
+
+	private void reloadThreadList() {
+		// threads were reconciled, the list shown is found again and handed over even if its ids didn't change
+		final ThreadListQuery listQuery = threadListQuery;
+		if (listQuery == null) {
+			return;
+		}
+		try {
+			final Collection<Thread> found = threadService.find(listQuery.query, listQuery.pageMax);
+			queryCache.put(listQuery.key, getIds(found));
+			if (listQuery == threadListQuery) {
+				invokeThreadListCallbacks(toGmailThreads(found, listQuery.pageMax));
+			}
+		} catch (final ThreadException | IOException e) {
+			LOGGER.error("reload threads for {}", listQuery.query, e);
+		}
+	}
+
+	private static List<String> getIds(final Collection<Thread> threads) {
+		return threads
+				.stream()
+				.map(Thread::getId)
+				.collect(Collectors.toList());
+	}
+
+	private void invokeThreadListCallbacks(final Set<GmailThread> threads) {
+		final Set<Callback<Set<GmailThread>, Void>> callbacks;
+		synchronized (threadListCallBacks) {
+			callbacks = new LinkedHashSet<>(threadListCallBacks);
+		}
+		callbacks.forEach(c -> c.call(threads));
+	}
+
 	@Override
 	public GmailMessage getMessage(final String id) throws GMailException {
+		GmailMessage gmailMessage = messageCache.get(id);
+		if (gmailMessage != null) {
+			return gmailMessage;
+		}
 		try {
-			return new GmailMessage(messageService.getMessage(id));
-		} catch (final MessageException | MessagingException e) {
+			final MimeMessage mimeMessage = messageService.getMimeMessage(id);
+			final Message message = messageService.getSummary(id);
+			gmailMessage = new GmailMessage(message, mimeMessage);
+			// weighted by the bytes it holds, not the attachments left on the server
+			messageCache.put(id, gmailMessage, messageService.getWeight(id, message));
+			return gmailMessage;
+		} catch (final MessageException e) {
 			throw new GMailException("load message id: " + id, e);
 		}
 	}
 
+	@Override
+	public boolean isCached(final String id) {
+		return messageCache.containsKey(id) || messageService.isCached(id);
+	}
+
+	@Override
+	public void getMessages(final Set<String> ids, final Callback<GmailMessage, Void> callback, final Callback<String, Void> failedCallback) throws GMailException {
+		final Set<String> missingIds = new LinkedHashSet<>();
+		for(final String id: ids) {
+			final GmailMessage message = messageCache.get(id);
+			if (message == null) {
+				missingIds.add(id);
+			} else {
+				callback.call(message);
+			}
+		}
+		if (missingIds.isEmpty()) {
+			return;
+		}
+
+		try {
+			messageService.fetch(missingIds);
+		} catch (final MessageException e) {
+			throw new GMailException("load messages " + missingIds, e);
+		}
+
+		// messages missing from the batch are handed to the failed callback, no request is made on the common pool
+		final Set<String> fetchedIds = new LinkedHashSet<>();
+		for(final String id: missingIds) {
+			if (messageService.isCached(id)) {
+				fetchedIds.add(id);
+			} else {
+				failedCallback.call(id);
+			}
+		}
+
+		// MIME is parsed in parallel on the common fork join pool, each message is handed over as soon as it is ready
+		fetchedIds.parallelStream().forEach(id -> {
+			try {
+				callback.call(getMessage(id));
+			} catch (final GMailException e) {
+				LOGGER.error("load message {}", id, e);
+				failedCallback.call(id);
+			}
+		});
+	}
+
 	@Override
 	public GmailMessage createDraft(final GmailMessage message) throws GMailException {
 		try {
@@ -284,25 +548,7 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 	@Override
 	public Set<GmailSection> getSections() throws GMailException {
 		try {
-			final Collection<Label> labels = labelService.getAll();
-			final Set<GmailSection> alphaSections = new TreeSet<>();
-			for(final Label label: labels) {
-				if (!GmailSection.isHidden(label)) {
-					final GmailSection section = new GmailSection(label);
-					final String sectionName = section.getName() + "/";
-					for(final Label l: labels) {
-						if (l.getName().contains(sectionName)) {
-							alphaSections.add(section);
-							break;
-						}
-					}
-				}
-			}
-
-			final Set<GmailSection> sections = new LinkedHashSet<>();
-			sections.add(GmailSection.SYSTEM);
-			sections.addAll(alphaSections);
-
+			final Set<GmailSection> sections = new LinkedHashSet<>(getTreeSections().sections);
 			LOGGER.debug("get sections: {}", sections);
 			return sections;
 		} catch (final LabelException e) {
@@ -313,21 +559,7 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 	@Override
 	public Set<GmailSection> getHiddenSections() throws GMailException {
 		try {
-			final Collection<Label> labels = labelService.getAll();
-			final Set<GmailSection> hiddenSections = new TreeSet<>();
-			for(final Label label: labels) {
-				if (GmailSection.isHidden(label)) {
-					final GmailSection section = new GmailSection(label);
-					final String sectionName = section.getName() + "/";
-					for(final Label l: labels) {
-						if (l.getName().contains(sectionName)) {
-							hiddenSections.add(section);
-							break;
-						}
-					}
-				}
-			}
-
+			final Set<GmailSection> hiddenSections = new TreeSet<>(getTreeSections().hiddenSections);
 			LOGGER.debug("get hidden sections: {}", hiddenSections);
 			return hiddenSections;
 		} catch (final LabelException e) {
@@ -335,6 +567,17 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 		}
 	}
 
+	private TreeSections getTreeSections() throws LabelException {
+		// rebuilt only once a new tree is published, a racing older one is replaced on next call
+		final LabelTree tree = labelService.getTree();
+		TreeSections treeSections = this.treeSections;
+		if (treeSections == null || treeSections.version != tree.getVersion()) {
+			treeSections = new TreeSections(tree);
+			this.treeSections = treeSections;
+		}
+		return treeSections;
+	}
+
 	@Override
 	public GmailTag getTag(final String id) throws GMailException {
 		GmailTag tag = getSpecialTag(id);
@@ -357,24 +600,15 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 				.map(String::toLowerCase)
 				.collect(Collectors.toSet());
 		final Set<GmailTag> tags = new TreeSet<>();
-		Set<Label> labels;
 		try {
-			labels = labelService.getAll()
-					.stream()
-					.filter(l -> !GmailTag.isHidden(l))
-					.collect(Collectors.toSet());
-		} catch (final LabelException e) {
-			throw new GMailException("get tags for pattern(s) " + patterns, e);
-		}
-		for(final Label l: labels) {
-			final GmailTag tag = getTag(l.getId());
-			final String tagName = tag.getName();
-			for(final String p: patterns) {
-				if (tagName.contains(p)) {
-					tags.add(tag);
-					break;
+			for(final Label l: labelService.getTree().findByName(patterns)) {
+				if (!GmailTag.isHidden(l)) {
+					final GmailTag tag = getSpecialTag(l.getId());
+					tags.add(tag == null? new GmailTag(l): tag);
 				}
 			}
+		} catch (final LabelException e) {
+			throw new GMailException("get tags for pattern(s) " + patterns, e);
 		}
 		return tags;
 	}
@@ -383,10 +617,10 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 	public Set<GmailTag> getHiddenTags() throws GMailException {
 		try {
 			final Set<GmailTag> tags = new TreeSet<>();
-			final Collection<Label> labels = labelService.getAll();
-			for(final Label l: labels) {
+			final LabelTree tree = labelService.getTree();
+			for(final Label l: tree.getLabels()) {
 				if (GmailTag.isHidden(l)) {
-					if (!hasSubLabel(l, labels)) {
+					if (!hasSubLabel(l, tree)) {
 						tags.add(new GmailTag(l));
 					}
 				}
@@ -401,11 +635,11 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 	public Set<GmailTag> getTags(final GmailSection section) throws GMailException {
 		try {
 			final Set<GmailTag> tags;
-			final Collection<Label> labels = labelService.getAll();
+			final LabelTree tree = labelService.getTree();
 			if (GmailSection.SYSTEM.equals(section)) {
 				final Set<GmailTag> systemTags = new HashSet<>();
 				systemTags.add(GmailTag.ALL);
-				for(final Label label: labels) {
+				for(final Label label: tree.getLabels()) {
 					final String name = label.getName();
 					if (GmailTag.isHidden(label)) {
 						continue;
@@ -421,7 +655,7 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 					}
 					if (!name.contains("/")) {
 						// root tags, put them here if no sub-tag
-						if (!hasSubLabel(label, labels)) {
+						if (!hasSubLabel(label, tree)) {
 							systemTags.add(new GmailTag(label));
 						}
 					}
@@ -429,27 +663,24 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 				tags = sortSystemTags(systemTags);
 			} else {
 				tags = new TreeSet<>();
-				for(final Label label: labels) {
-					if (!GmailTag.isHidden(label) && !GmailTag.isSystem(label)) {
-						final String name = label.getName();
-						if (section != null && name.equals(section.getPath())) {
+				if (section == null) {
+					for(final Label label: tree.getLabels()) {
+						if (!GmailTag.isHidden(label) && !GmailTag.isSystem(label)
+								&& label.getName().lastIndexOf("/") > 0
+								&& !tree.hasChildren(label)) {
+							tags.add(new GmailTag(label));
+						}
+					}
+				} else {
+					final Node sectionNode = tree.getNode(section.getPath());
+					if (sectionNode != null) {
+						final Label label = sectionNode.getLabel();
+						if (label != null && !sectionNode.isHidden() && !sectionNode.isSystem()) {
 							tags.add(new GmailTag(label.getId(), Tag.THIS_NAME, label.getName(), true));
-						} else {
-							final int pos = name.lastIndexOf("/");
-							if (pos > 0) {
-								if (section == null || section.getName().equals(name.substring(0, pos))) {
-									final String sectionName = name + "/";
-									boolean isSection = false;
-									for(final Label l: labels) {
-										if (l.getName().contains(sectionName)) {
-											isSection = true;
-											break;
-										}
-									}
-									if (!isSection) {
-										tags.add(new GmailTag(label));
-									}
-								}
+						}
+						for(final Node node: sectionNode.getChildren()) {
+							if (node.getLabel() != null && !node.isHidden() && !node.isSystem() && !node.hasChildren()) {
+								tags.add(new GmailTag(node.getLabel()));
 							}
 						}
 					}
@@ -463,17 +694,9 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 		}
 	}
 
-	private boolean hasSubLabel(final Label label, final Collection<Label> labels) {
+	private boolean hasSubLabel(final Label label, final LabelTree tree) {
 		final String name = label.getName();
-		for(final Label l: labels) {
-			final String n = l.getName();
-			if (!n.equals(name)
-					&& n.contains(name + "/")
-					&& name.indexOf("/") == name.lastIndexOf("/")) {
-				return true;
-			}
-		}
-		return false;
+		return name.indexOf("/") == name.lastIndexOf("/") && tree.hasChildren(label);
 	}
 
 	private Set<GmailTag> sortSystemTags(final Set<GmailTag> tags) {
@@ -548,12 +771,51 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 				query.append("(").append(p).append(")");
 			}
 
+			final Long count = countFromStats(includes, excludes, pattern);
+			if (count != null) {
+				return count;
+			}
+
 			return threadService.count(query.toString());
 		} catch (final ThreadException e) {
 			throw new GMailException("count threads", e);
 		}
 	}
 
+	public void setMessageCacheSize(final long bytes) {
+		messageCache.setMaxWeight(bytes);
+	}
+
+	public void setCountMax(final int countMax) {
+		threadService.setCountMax(countMax);
+	}
+
+	private Long countFromStats(final Set<GmailTag> includes, final Set<GmailTag> excludes, final String pattern) {
+		// inbox or unread in inbox, exact count is provided by label statistics
+		// statistics include threads in spam and trash which the listed count skips, both only agree for the inbox
+		// as a thread leaves it when it is moved to spam or trash
+		if (!excludes.isEmpty() || !pattern.isEmpty() || includes.isEmpty() || includes.size() > 2) {
+			return null;
+		}
+		final Set<GmailTag> labels = new HashSet<>(includes);
+		final boolean unread = labels.size() == 2 && labels.remove(GmailTag.UNREAD);
+		if (labels.size() != 1) {
+			return null;
+		}
+		final GmailTag tag = labels.iterator().next();
+		if (!GmailTag.INBOX.equals(tag)) {
+			return null;
+		}
+		try {
+			final Label stats = labelService.getStats(tag.getId());
+			final Integer count = unread? stats.getThreadsUnread(): stats.getThreadsTotal();
+			return count == null? null: Long.valueOf(count);
+		} catch (final LabelException e) {
+			LOGGER.warn("count from label stats {}: {}", tag.getPath(), e.getMessage());
+			return null;
+		}
+	}
+
 	@Override
 	public long getCountForSection(final GmailSection section
 			, final Set<GmailTag> includes, final Set<GmailTag> excludes
@@ -611,6 +873,15 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 				query.append(")");
 			}
 
+			if (tags.size() == 1) {
+				final Set<GmailTag> tagIncludes = new HashSet<>(includes);
+				tagIncludes.add(tags.iterator().next());
+				final Long count = countFromStats(tagIncludes, excludes, namePattern);
+				if (count != null) {
+					return count;
+				}
+			}
+
 			return threadService.count(query.toString());
 		} catch (final ThreadException e) {
 			throw new GMailException("count threads for " + section.getPath(), e);
@@ -624,6 +895,8 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 			final Set<String> labelIds = new HashSet<>();
 			labelIds.add(tag.getId());
 			threadService.update(threadIds, labelIds, true);
+			labelService.clearStats(labelIds);
+			queryCache.invalidate();
 		} catch (final ThreadException e) {
 			throw new GMailException("add tag " + tag.getName(), e);
 		}
@@ -636,6 +909,8 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 			final Set<String> labelIds = new HashSet<>();
 			labelIds.add(tag.getId());
 			threadService.update(threadIds, labelIds, false);
+			labelService.clearStats(labelIds);
+			queryCache.invalidate();
 		} catch (final ThreadException e) {
 			throw new GMailException("remove tag " + tag.getName(), e);
 		}
@@ -746,13 +1021,15 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 
 	@Override
 	public void remove(final GmailSection section) throws GMailException {
-		for(final GmailTag t: getTags(section)) {
-			remove(t);
-		}
+		final Set<String> labelIds = getTags(section)
+				.stream()
+				.map(GmailTag::getId)
+				.collect(Collectors.toCollection(LinkedHashSet::new));
+		labelIds.add(section.getId());
 		try {
-			labelService.remove(section.getId());
+			labelService.remove(labelIds);
 		} catch (final LabelException e) {
-			// don't bother if the label really exists
+			throw new GMailException("remove section " + section.getName(), e);
 		}
 	}
 
@@ -772,6 +1049,8 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 			final Set<String> labelIds = new HashSet<>();
 			labelIds.add(GmailTag.INBOX.getId());
 			threadService.update(ids, labelIds, false);
+			labelService.clearStats(labelIds);
+			queryCache.invalidate();
 		} catch (final ThreadException e) {
 			throw new GMailException("archive threads " + threads, e);
 		}
@@ -784,6 +1063,8 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 					.stream()
 					.map(t -> t.getId())
 					.collect(Collectors.toSet()));
+			labelService.clearStats();
+			queryCache.invalidate();
 		} catch (final ThreadException e) {
 			throw new GMailException("trash threads " + threads, e);
 		}
@@ -796,6 +1077,7 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 				messageService.removeDraft(message.getId());
 			} else {
 				messageService.removeMessage(message.getId());
+				messageCache.remove(message.getId());
 			}
 		} catch (final MessageException e) {
 			throw new GMailException("remove message " + message.getId(), e);
@@ -812,8 +1094,18 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 		historyService.addOnUpdateMessage(mSet -> callback.run());
 	}
 
+	@Override
+	public void addOnUpdateThreadList(final Callback<Set<GmailThread>, Void> callback) {
+		synchronized (threadListCallBacks) {
+			threadListCallBacks.add(callback);
+		}
+	}
+
 	@Override
 	public void addOnNewMessage(final Callback<Set<GmailThread>, Void> callback) {
+		// threads with any of these tags are not notified
+		final BitSet ignoredTags = labelDictionary.toBits(Arrays.asList(
+				GmailTag.DRAFT.getId(), GmailTag.SPAM.getId(), GmailTag.TRASH.getId(), GmailTag.SENT.getId()));
 		historyService.addOnAddedMessage(mSet -> {
 			final Set<GmailThread> threads = new LinkedHashSet<>();
 			mSet.forEach(m -> {
@@ -824,13 +1116,8 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 					LOGGER.error("load thread id {} for message id {}", m.getThreadId(), m.getId(), e);
 					return;
 				}
-				final GmailThread thread = new GmailThread(t);
-				final Set<String> tagIds = thread.getTagIds();
-				if (tagIds.contains(GmailTag.UNREAD.getId())
-						&& !tagIds.contains(GmailTag.DRAFT.getId())
-						&& !tagIds.contains(GmailTag.SPAM.getId())
-						&& !tagIds.contains(GmailTag.TRASH.getId())
-						&& !tagIds.contains(GmailTag.SENT.getId())) {
+				final GmailThread thread = new GmailThread(t, labelDictionary);
+				if (thread.isUnread() && !thread.hasAnyTag(ignoredTags)) {
 					threads.add(thread);
 				}
 			});
@@ -874,22 +1161,12 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 
 	@Override
 	public Set<GmailContact> getContacts() throws GMailException {
-		try {
-			final Set<GmailContact> contacts = new LinkedHashSet<>();
-			for(final ContactEntry c: contactService.getAll()) {
-				if (c.getEmailAddresses() != null
-						&& c.getName() != null
-						&& c.getName().getFullName() != null) {
-					final String fullName = c.getName().getFullName().getValue();
-					for(final Email e: c.getEmailAddresses()) {
-						contacts.add(new GmailContact(e.getAddress(), fullName));
-					}
-				}
-			}
-			return contacts;
-		} catch (final ContactException e) {
-			throw new GMailException("get contacts", e);
-		}
+		return contactService.getAll();
+	}
+
+	@Override
+	public ContactIndex<GmailContact> getContactIndex() throws GMailException {
+		return contactService.getIndex();
 	}
 
 	@Override
@@ -918,6 +1195,8 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 		labelService.clearCache();
 		messageService.clearCache();
 		threadService.clearCache();
+		queryCache.clear();
+		messageCache.clear();
 		contactService.clearCache();
 		historyService.clearCache();
 	}
@@ -970,9 +1249,9 @@ public class GmailService implements MailService<GmailSection, GmailTag, GmailTh
 		try {
 			final Set<Message> messages = messageService.find(id);
 			final String messageId = messages.iterator().next().getId();
-			final MimeMessage message = GmailMessage.getMimeMessage(messageService.getMessage(messageId));
+			final MimeMessage message = messageService.getMimeMessage(messageId);
 			try (final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-					BASE64DecoderStream bds = (BASE64DecoderStream) message.getContent()) {
+					InputStream bds = (InputStream) message.getContent()) {
 				final byte[] bytes = new byte[128];
 				int n = 0;
 				while ((n=bds.read(bytes)) > 0) {
@@ -0,0 +1,349 @@
+package net.anfoya.mail.gmail.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.gmail.model.Label;
+import com.google.api.services.gmail.model.LabelColor;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import com.google.api.services.gmail.model.Thread;
+
+public final class CacheCodec {
+	// first byte of every entry, unknown versions are reported so the entry can be evicted
+	private static final byte JSON = 0;
+	private static final byte BINARY_V1 = 1;
+	private static final byte DEFLATED_V1 = 2;
+
+	private static final JsonObjectParser JSON_PARSER = new JsonObjectParser(JacksonFactory.getDefaultInstance());
+
+	private CacheCodec() {
+	}
+
+	public static byte[] encode(final GenericJson data) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		if (data instanceof Thread) {
+			out.writeByte(BINARY_V1);
+			writeThread(out, (Thread) data);
+		} else if (data instanceof Message && ((Message) data).getPayload() != null) {
+			// full payloads are mostly text bodies, they compress well
+			out.writeByte(DEFLATED_V1);
+			final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try (final DataOutputStream deflated = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+				writeMessage(deflated, (Message) data);
+			} finally {
+				deflater.end();
+			}
+			return bytes.toByteArray();
+		} else if (data instanceof Message) {
+			out.writeByte(BINARY_V1);
+			writeMessage(out, (Message) data);
+		} else if (data instanceof Label) {
+			out.writeByte(BINARY_V1);
+			writeLabel(out, (Label) data);
+		} else {
+			out.writeByte(JSON);
+			data.setFactory(JacksonFactory.getDefaultInstance());
+			out.write(data.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		out.flush();
+
+		return bytes.toByteArray();
+	}
+
+	public static <T extends GenericJson> T decode(final byte[] bytes, final Class<T> clazz) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		final byte version = in.readByte();
+		switch (version) {
+		case JSON:
+			return JSON_PARSER.parseAndClose(new InputStreamReader(in, StandardCharsets.UTF_8), clazz);
+		case DEFLATED_V1:
+			if (clazz != Message.class) {
+				throw new IOException("no deflated codec for " + clazz.getName());
+			}
+			try (final DataInputStream inflated = new DataInputStream(new InflaterInputStream(in))) {
+				return clazz.cast(readMessage(inflated));
+			}
+		case BINARY_V1:
+			final Object data;
+			if (clazz == Thread.class) {
+				data = readThread(in);
+			} else if (clazz == Message.class) {
+				data = readMessage(in);
+			} else if (clazz == Label.class) {
+				data = readLabel(in);
+			} else {
+				throw new IOException("no binary codec for " + clazz.getName());
+			}
+			return clazz.cast(data);
+		default:
+			throw new IOException("unknown cache version " + version);
+		}
+	}
+
+	private static void writeThread(final DataOutputStream out, final Thread thread) throws IOException {
+		writeString(out, thread.getId());
+		writeBigInteger(out, thread.getHistoryId());
+		writeString(out, thread.getSnippet());
+		final List<Message> messages = thread.getMessages();
+		out.writeInt(messages == null? -1: messages.size());
+		if (messages != null) {
+			for(final Message m: messages) {
+				writeMessage(out, m);
+			}
+		}
+	}
+
+	private static Thread readThread(final DataInputStream in) throws IOException {
+		final Thread thread = new Thread();
+		thread.setId(readString(in));
+		thread.setHistoryId(readBigInteger(in));
+		thread.setSnippet(readString(in));
+		final int size = in.readInt();
+		if (size != -1) {
+			final List<Message> messages = new ArrayList<>(size);
+			for(int i=0; i<size; i++) {
+				messages.add(readMessage(in));
+			}
+			thread.setMessages(messages);
+		}
+		return thread;
+	}
+
+	private static void writeMessage(final DataOutputStream out, final Message message) throws IOException {
+		writeString(out, message.getId());
+		writeString(out, message.getThreadId());
+		writeBigInteger(out, message.getHistoryId());
+		writeLong(out, message.getInternalDate());
+		writeStrings(out, message.getLabelIds());
+		writeString(out, message.getSnippet());
+		writeInteger(out, message.getSizeEstimate());
+		writeString(out, message.getRaw());
+		writePart(out, message.getPayload());
+	}
+
+	private static Message readMessage(final DataInputStream in) throws IOException {
+		final Message message = new Message();
+		message.setId(readString(in));
+		message.setThreadId(readString(in));
+		message.setHistoryId(readBigInteger(in));
+		message.setInternalDate(readLong(in));
+		message.setLabelIds(readStrings(in));
+		message.setSnippet(readString(in));
+		message.setSizeEstimate(readInteger(in));
+		message.setRaw(readString(in));
+		message.setPayload(readPart(in));
+		return message;
+	}
+
+	private static void writePart(final DataOutputStream out, final MessagePart part) throws IOException {
+		out.writeBoolean(part != null);
+		if (part == null) {
+			return;
+		}
+		writeString(out, part.getPartId());
+		writeString(out, part.getMimeType());
+		writeString(out, part.getFilename());
+
+		final List<MessagePartHeader> headers = part.getHeaders();
+		out.writeInt(headers == null? -1: headers.size());
+		if (headers != null) {
+			for(final MessagePartHeader h: headers) {
+				writeString(out, h.getName());
+				writeString(out, h.getValue());
+			}
+		}
+
+		final MessagePartBody body = part.getBody();
+		out.writeBoolean(body != null);
+		if (body != null) {
+			writeString(out, body.getAttachmentId());
+			writeInteger(out, body.getSize());
+			writeString(out, body.getData());
+		}
+
+		final List<MessagePart> parts = part.getParts();
+		out.writeInt(parts == null? -1: parts.size());
+		if (parts != null) {
+			for(final MessagePart p: parts) {
+				writePart(out, p);
+			}
+		}
+	}
+
+	private static MessagePart readPart(final DataInputStream in) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		final MessagePart part = new MessagePart();
+		part.setPartId(readString(in));
+		part.setMimeType(readString(in));
+		part.setFilename(readString(in));
+
+		final int headerCount = in.readInt();
+		if (headerCount != -1) {
+			final List<MessagePartHeader> headers = new ArrayList<>(headerCount);
+			for(int i=0; i<headerCount; i++) {
+				headers.add(new MessagePartHeader()
+						.setName(readString(in))
+						.setValue(readString(in)));
+			}
+			part.setHeaders(headers);
+		}
+
+		if (in.readBoolean()) {
+			part.setBody(new MessagePartBody()
+					.setAttachmentId(readString(in))
+					.setSize(readInteger(in))
+					.setData(readString(in)));
+		}
+
+		final int partCount = in.readInt();
+		if (partCount != -1) {
+			final List<MessagePart> parts = new ArrayList<>(partCount);
+			for(int i=0; i<partCount; i++) {
+				parts.add(readPart(in));
+			}
+			part.setParts(parts);
+		}
+		return part;
+	}
+
+	private static void writeLabel(final DataOutputStream out, final Label label) throws IOException {
+		writeString(out, label.getId());
+		writeString(out, label.getName());
+		writeString(out, label.getType());
+		writeString(out, label.getMessageListVisibility());
+		writeString(out, label.getLabelListVisibility());
+		writeInteger(out, label.getMessagesTotal());
+		writeInteger(out, label.getMessagesUnread());
+		writeInteger(out, label.getThreadsTotal());
+		writeInteger(out, label.getThreadsUnread());
+		final LabelColor color = label.getColor();
+		out.writeBoolean(color != null);
+		if (color != null) {
+			writeString(out, color.getTextColor());
+			writeString(out, color.getBackgroundColor());
+		}
+	}
+
+	private static Label readLabel(final DataInputStream in) throws IOException {
+		final Label label = new Label();
+		label.setId(readString(in));
+		label.setName(readString(in));
+		label.setType(readString(in));
+		label.setMessageListVisibility(readString(in));
+		label.setLabelListVisibility(readString(in));
+		label.setMessagesTotal(readInteger(in));
+		label.setMessagesUnread(readInteger(in));
+		label.setThreadsTotal(readInteger(in));
+		label.setThreadsUnread(readInteger(in));
+		if (in.readBoolean()) {
+			label.setColor(new LabelColor()
+					.setTextColor(readString(in))
+					.setBackgroundColor(readString(in)));
+		}
+		return label;
+	}
+
+	private static void writeString(final DataOutputStream out, final String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			// not writeUTF, raw messages are larger than 64k
+			final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(final DataInputStream in) throws IOException {
+		final int length = in.readInt();
+		if (length == -1) {
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeStrings(final DataOutputStream out, final List<String> strings) throws IOException {
+		out.writeInt(strings == null? -1: strings.size());
+		if (strings != null) {
+			for(final String s: strings) {
+				writeString(out, s);
+			}
+		}
+	}
+
+	private static List<String> readStrings(final DataInputStream in) throws IOException {
+		final int size = in.readInt();
+		if (size == -1) {
+			return null;
+		}
+		final List<String> strings = new ArrayList<>(size);
+		for(int i=0; i<size; i++) {
+			strings.add(readString(in));
+		}
+		return strings;
+	}
+
+	private static void writeLong(final DataOutputStream out, final Long l) throws IOException {
+		out.writeBoolean(l != null);
+		if (l != null) {
+			out.writeLong(l);
+		}
+	}
+
+	private static Long readLong(final DataInputStream in) throws IOException {
+		return in.readBoolean()? in.readLong(): null;
+	}
+
+	private static void writeInteger(final DataOutputStream out, final Integer i) throws IOException {
+		out.writeBoolean(i != null);
+		if (i != null) {
+			out.writeInt(i);
+		}
+	}
+
+	private static Integer readInteger(final DataInputStream in) throws IOException {
+		return in.readBoolean()? in.readInt(): null;
+	}
+
+	private static void writeBigInteger(final DataOutputStream out, final BigInteger b) throws IOException {
+		if (b == null) {
+			out.writeInt(-1);
+		} else {
+			final byte[] bytes = b.toByteArray();
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static BigInteger readBigInteger(final DataInputStream in) throws IOException {
+		final int length = in.readInt();
+		if (length == -1) {
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new BigInteger(bytes);
+	}
+}
@@ -2,16 +2,14 @@ package net.anfoya.mail.gmail.cache;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.io.StringReader;
+import java.io.UncheckedIOException;
 
 import com.google.api.client.json.GenericJson;
-import com.google.api.client.json.JsonObjectParser;
-import com.google.api.client.json.jackson2.JacksonFactory;
 
 @SuppressWarnings("serial")
 public class CacheData<T extends GenericJson> implements Serializable {
 
-	private String json;
+	private byte[] bytes;
 	private Class<T> clazz;
 
 	private transient T t;
@@ -21,20 +19,35 @@ public class CacheData<T extends GenericJson> implements Serializable {
 
 	@SuppressWarnings("unchecked")
 	public CacheData(final T t) {
-		this.json = t.toString();
+		// encoded right away, later changes to the object are not written
+		try {
+			this.bytes = CacheCodec.encode(t);
+		} catch (final IOException e) {
+			throw new UncheckedIOException("encode " + t.getClass().getSimpleName(), e);
+		}
 		this.clazz = (Class<T>) t.getClass();
 		this.t = t;
 	}
 
+	CacheData(final byte[] bytes, final Class<T> clazz) {
+		this.bytes = bytes;
+		this.clazz = clazz;
+	}
+
 	public T getData() throws CacheException {
 		if (t == null) {
 			try {
-				t = new JsonObjectParser(new JacksonFactory()).parseAndClose(new StringReader(json), clazz);
+				t = CacheCodec.decode(bytes, clazz);
 			} catch (final IOException e) {
-				throw new CacheException("parse json", e);
+				throw new CacheException("decode " + clazz.getSimpleName(), e);
 			}
 		}
 
 		return t;
 	}
+
+	byte[] getBytes() {
+		// entries read from disk are decoded on first use
+		return bytes;
+	}
 }
@@ -0,0 +1,93 @@
+package net.anfoya.mail.gmail.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.json.GenericJson;
+
+public class CacheStore<T extends GenericJson> {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CacheStore.class);
+
+	private final SegmentStore store;
+	private final Class<T> clazz;
+
+	public CacheStore(final File dir, final Class<T> clazz) {
+		this.store = open(dir);
+		this.clazz = clazz;
+	}
+
+	public static SegmentStore open(final File dir) {
+		// a cache that cannot be opened only means cache misses
+		try {
+			return new SegmentStore(dir);
+		} catch (final IOException e) {
+			LOGGER.error("open cache {}, caching disabled", dir, e);
+			return null;
+		}
+	}
+
+	public boolean containsKey(final String id) {
+		return store != null && store.containsKey(id);
+	}
+
+	public Set<String> keySet() {
+		return store == null? Collections.emptySet(): store.keySet();
+	}
+
+	public CacheData<T> get(final String id) {
+		if (store == null) {
+			return null;
+		}
+		try {
+			final byte[] bytes = store.get(id);
+			return bytes == null? null: new CacheData<>(bytes, clazz);
+		} catch (final IOException e) {
+			LOGGER.error("read {} from cache", id, e);
+			return null;
+		}
+	}
+
+	public void put(final String id, final CacheData<T> data) {
+		if (store == null) {
+			return;
+		}
+		try {
+			store.put(id, data.getBytes());
+		} catch (final IOException e) {
+			LOGGER.error("write {} to cache", id, e);
+		}
+	}
+
+	public void remove(final String id) {
+		if (store == null) {
+			return;
+		}
+		try {
+			store.remove(id);
+		} catch (final IOException e) {
+			LOGGER.error("remove {} from cache", id, e);
+		}
+	}
+
+	public void clear() {
+		if (store == null) {
+			return;
+		}
+		try {
+			store.clear();
+		} catch (final IOException e) {
+			LOGGER.error("clear cache", e);
+		}
+	}
+
+	public void close() {
+		if (store != null) {
+			store.close();
+		}
+	}
+}
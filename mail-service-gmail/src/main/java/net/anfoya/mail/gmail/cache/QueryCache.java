@@ -0,0 +1,87 @@
+package net.anfoya.mail.gmail.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.anfoya.java.io.SerializedFile;
+import net.anfoya.java.util.system.ShutdownHook;
+
+public class QueryCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(QueryCache.class);
+
+	public static final int DEFAULT_MAX_QUERIES = 100;
+	public static final long DEFAULT_MAX_AGE_MS = 60 * 1000;
+
+	private final Map<String, List<String>> queryIds;
+	private final Map<String, Long> queryTimes;
+	private final long maxAge;
+
+	public QueryCache(final File cacheDir) {
+		this(cacheDir, DEFAULT_MAX_QUERIES, DEFAULT_MAX_AGE_MS);
+	}
+
+	public QueryCache(final File cacheDir, final int maxQueries, final long maxAge) {
+		this.maxAge = maxAge;
+
+		queryIds = new LinkedHashMap<String, List<String>>(16, .75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, List<String>> eldest) {
+				return size() > maxQueries;
+			}
+		};
+		queryTimes = new HashMap<>();
+
+		final String filename = new File(cacheDir, "query-ids").getPath();
+
+		// loaded entries are served right away but always revalidated
+		try {
+			queryIds.putAll(new SerializedFile<Map<String, List<String>>>(filename).load());
+		} catch (ClassNotFoundException | IOException e) {
+			queryIds.clear();
+		}
+
+		new ShutdownHook(() -> {
+			LOGGER.info("saving...");
+			final Map<String, List<String>> toSave;
+			synchronized (this) {
+				toSave = new HashMap<>(queryIds);
+			}
+			new SerializedFile<Map<String, List<String>>>(filename).save(toSave);
+		});
+	}
+
+	public synchronized List<String> get(final String query) {
+		final List<String> ids = queryIds.get(query);
+		return ids == null? null: new ArrayList<>(ids);
+	}
+
+	public synchronized boolean isStale(final String query) {
+		final Long time = queryTimes.get(query);
+		return time == null || System.currentTimeMillis() - time > maxAge;
+	}
+
+	public synchronized boolean put(final String query, final List<String> ids) {
+		queryTimes.put(query, System.currentTimeMillis());
+		final List<String> previous = queryIds.put(query, new ArrayList<>(ids));
+		queryTimes.keySet().retainAll(queryIds.keySet());
+		return !ids.equals(previous);
+	}
+
+	public synchronized void invalidate() {
+		queryTimes.clear();
+	}
+
+	public synchronized void clear() {
+		queryIds.clear();
+		queryTimes.clear();
+	}
+}
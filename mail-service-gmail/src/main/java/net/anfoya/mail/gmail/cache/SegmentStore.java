@@ -0,0 +1,527 @@
+package net.anfoya.mail.gmail.cache;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.anfoya.java.util.concurrent.ThreadPool;
+import net.anfoya.java.util.concurrent.ThreadPool.PoolPriority;
+
+/**
+ * Append-only key/value store made of segment files and an in-memory index.
+ * Records are [crc][seq][key length][value length][key][value], a value length of -1 is a removal.
+ * Values are read with positional reads rather than mapped so that segments can be deleted on Windows.
+ * The owner closes the store once its last writes are done, typically from its own shutdown hook.
+ */
+public class SegmentStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SegmentStore.class);
+
+	private static final String SEGMENT_EXT = ".seg";
+	private static final String HINT_EXT = ".hint";
+	private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+	private static final int TOMBSTONE = -1;
+
+	public static final long DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+	public static final long DEFAULT_COMPACT_MIN_GARBAGE = 4 * 1024 * 1024;
+	private static final double COMPACT_GARBAGE_RATIO = .5;
+
+	private static class Location {
+		private final int segment;
+		private final long position;
+		private final int keyLength;
+		private final int valueLength;
+		private final long seq;
+
+		private Location(final int segment, final long position, final int keyLength, final int valueLength, final long seq) {
+			this.segment = segment;
+			this.position = position;
+			this.keyLength = keyLength;
+			this.valueLength = valueLength;
+			this.seq = seq;
+		}
+
+		private int getSize() {
+			return HEADER_SIZE + keyLength + Math.max(0, valueLength);
+		}
+	}
+
+	private final File dir;
+	private final long segmentSize;
+	private final long compactMinGarbage;
+	private final Map<String, Location> index;
+	private final Set<Integer> segmentIds;
+	private final Map<Integer, FileChannel> channels;
+	private final ReadWriteLock lock;
+	private final AtomicBoolean compacting;
+
+	private int nextId;
+	private int activeId;
+	private long activeSize;
+	private long seq;
+	private long totalBytes;
+	private long garbageBytes;
+
+	public SegmentStore(final File dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public SegmentStore(final File dir, final long segmentSize) throws IOException {
+		this(dir, segmentSize, DEFAULT_COMPACT_MIN_GARBAGE);
+	}
+
+	public SegmentStore(final File dir, final long segmentSize, final long compactMinGarbage) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.compactMinGarbage = compactMinGarbage;
+
+		index = new ConcurrentHashMap<>();
+		segmentIds = new ConcurrentSkipListSet<>();
+		channels = new ConcurrentHashMap<>();
+		lock = new ReentrantReadWriteLock();
+		compacting = new AtomicBoolean(false);
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("create store directory " + dir);
+		}
+		load();
+	}
+
+	public boolean containsKey(final String key) {
+		return index.containsKey(key);
+	}
+
+	public Set<String> keySet() {
+		return new HashSet<>(index.keySet());
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	public byte[] get(final String key) throws IOException {
+		lock.readLock().lock();
+		try {
+			final Location location = index.get(key);
+			return location == null? null: read(location);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void put(final String key, final byte[] value) throws IOException {
+		lock.readLock().lock();
+		try {
+			synchronized (this) {
+				final Location location = append(activeId, key, value, ++seq);
+				final Location previous = index.put(key, location);
+				if (previous != null) {
+					garbageBytes += previous.getSize();
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		compactIfNeeded();
+	}
+
+	public void remove(final String key) throws IOException {
+		lock.readLock().lock();
+		try {
+			synchronized (this) {
+				final Location previous = index.remove(key);
+				if (previous != null) {
+					final Location tombstone = append(activeId, key, null, ++seq);
+					garbageBytes += previous.getSize() + tombstone.getSize();
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		compactIfNeeded();
+	}
+
+	public void clear() throws IOException {
+		lock.writeLock().lock();
+		try {
+			synchronized (this) {
+				for(final int id: new TreeSet<>(segmentIds)) {
+					deleteSegment(id);
+				}
+				index.clear();
+				totalBytes = 0;
+				garbageBytes = 0;
+				activeId = nextId++;
+				activeSize = 0;
+				channel(activeId);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			synchronized (this) {
+				for(final FileChannel channel: channels.values()) {
+					try {
+						channel.force(false);
+						channel.close();
+					} catch (final IOException e) {
+						LOGGER.error("close segment in {}", dir, e);
+					}
+				}
+				channels.clear();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void load() throws IOException {
+		final long start = System.currentTimeMillis();
+		final TreeSet<Integer> ids = new TreeSet<>();
+		final File[] files = dir.listFiles((d, n) -> n.endsWith(SEGMENT_EXT));
+		if (files != null) {
+			for(final File f: files) {
+				try {
+					ids.add(Integer.parseInt(f.getName().substring(0, f.getName().length() - SEGMENT_EXT.length())));
+				} catch (final NumberFormatException e) {
+					LOGGER.warn("ignore {}", f);
+				}
+			}
+		}
+
+		segmentIds.addAll(ids);
+		for(final int id: ids) {
+			// segments without hints were not sealed properly, their records are verified one by one
+			List<Entry<String, Location>> records = null;
+			try {
+				records = getHintFile(id).exists()? readHints(id): null;
+			} catch (final IOException | RuntimeException e) {
+				LOGGER.warn("read hints of segment {} in {}: {}", id, dir, e.getMessage());
+			}
+			if (records == null) {
+				records = scan(id);
+				if (id != ids.last()) {
+					// sealed segment, next load reads its hints again
+					writeHints(id, records);
+				}
+			}
+			for(final Entry<String, Location> record: records) {
+				final Location location = record.getValue();
+				final Location previous = index.get(record.getKey());
+				if (previous == null || previous.seq < location.seq) {
+					index.put(record.getKey(), location);
+					if (previous != null) {
+						garbageBytes += previous.getSize();
+					}
+				} else {
+					garbageBytes += location.getSize();
+				}
+				totalBytes += location.getSize();
+				seq = Math.max(seq, location.seq);
+			}
+			nextId = id + 1;
+		}
+		index.entrySet().removeIf(e -> {
+			if (e.getValue().valueLength == TOMBSTONE) {
+				garbageBytes += e.getValue().getSize();
+				return true;
+			}
+			return false;
+		});
+
+		if (ids.isEmpty()) {
+			activeId = nextId++;
+			activeSize = 0;
+		} else {
+			activeId = nextId - 1;
+			activeSize = channel(activeId).size();
+			getHintFile(activeId).delete();
+		}
+		channel(activeId);
+
+		LOGGER.info("loaded {} keys from {} segments in {}ms ({})", index.size(), ids.size(), System.currentTimeMillis()-start, dir);
+	}
+
+	private List<Entry<String, Location>> scan(final int id) throws IOException {
+		final List<Entry<String, Location>> records = new ArrayList<>();
+		final FileChannel channel = channel(id);
+		final long size = channel.size();
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		long position = 0;
+		while (position < size) {
+			try {
+				header.clear();
+				readFully(channel, header, position);
+				header.flip();
+				final int crc = header.getInt();
+				final long recordSeq = header.getLong();
+				final int keyLength = header.getInt();
+				final int valueLength = header.getInt();
+				if (keyLength < 0 || valueLength < TOMBSTONE || position + HEADER_SIZE + keyLength + Math.max(0, valueLength) > size) {
+					throw new EOFException("truncated record");
+				}
+				final ByteBuffer body = ByteBuffer.allocate(keyLength + Math.max(0, valueLength));
+				readFully(channel, body, position + HEADER_SIZE);
+				final CRC32 crc32 = new CRC32();
+				crc32.update(header.array(), 4, HEADER_SIZE - 4);
+				crc32.update(body.array());
+				if ((int) crc32.getValue() != crc) {
+					throw new IOException("bad checksum");
+				}
+				final String key = new String(body.array(), 0, keyLength, StandardCharsets.UTF_8);
+				final Location location = new Location(id, position, keyLength, valueLength, recordSeq);
+				records.add(new SimpleEntry<>(key, location));
+				position += location.getSize();
+			} catch (final IOException e) {
+				// torn write from a crash, anything after the last good record is dropped
+				LOGGER.warn("truncate segment {} of {} at {}: {}", id, dir, position, e.getMessage());
+				channel.truncate(position);
+				break;
+			}
+		}
+		return records;
+	}
+
+	private List<Entry<String, Location>> readHints(final int id) throws IOException {
+		final List<Entry<String, Location>> records = new ArrayList<>();
+		final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(getHintFile(id).toPath()));
+		while (buffer.hasRemaining()) {
+			final long recordSeq = buffer.getLong();
+			final long position = buffer.getLong();
+			final int keyLength = buffer.getInt();
+			final int valueLength = buffer.getInt();
+			final byte[] key = new byte[keyLength];
+			buffer.get(key);
+			records.add(new SimpleEntry<>(
+					new String(key, StandardCharsets.UTF_8)
+					, new Location(id, position, keyLength, valueLength, recordSeq)));
+		}
+		return records;
+	}
+
+	private void writeHints(final int id) throws IOException {
+		writeHints(id, scan(id));
+	}
+
+	private void writeHints(final int id, final List<Entry<String, Location>> records) throws IOException {
+		int size = 0;
+		final List<byte[]> keys = new ArrayList<>();
+		for(final Entry<String, Location> record: records) {
+			final byte[] key = record.getKey().getBytes(StandardCharsets.UTF_8);
+			keys.add(key);
+			size += 8 + 8 + 4 + 4 + key.length;
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(size);
+		for(int i=0; i<records.size(); i++) {
+			final Location location = records.get(i).getValue();
+			buffer.putLong(location.seq);
+			buffer.putLong(location.position);
+			buffer.putInt(location.keyLength);
+			buffer.putInt(location.valueLength);
+			buffer.put(keys.get(i));
+		}
+
+		final File tmp = new File(getHintFile(id).getPath() + ".tmp");
+		Files.write(tmp.toPath(), buffer.array());
+		Files.move(tmp.toPath(), getHintFile(id).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Location append(final int id, final String key, final byte[] value, final long recordSeq) throws IOException {
+		final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		final int valueLength = value == null? TOMBSTONE: value.length;
+		final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + Math.max(0, valueLength));
+		buffer.putInt(0);
+		buffer.putLong(recordSeq);
+		buffer.putInt(keyBytes.length);
+		buffer.putInt(valueLength);
+		buffer.put(keyBytes);
+		if (value != null) {
+			buffer.put(value);
+		}
+		final CRC32 crc32 = new CRC32();
+		crc32.update(buffer.array(), 4, buffer.capacity() - 4);
+		buffer.putInt(0, (int) crc32.getValue());
+		buffer.flip();
+
+		final FileChannel channel = channel(id);
+		final long position = id == activeId? activeSize: channel.size();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+
+		final Location location = new Location(id, position, keyBytes.length, valueLength, recordSeq);
+		totalBytes += location.getSize();
+		if (id == activeId) {
+			activeSize += location.getSize();
+			if (activeSize >= segmentSize) {
+				rotate();
+			}
+		}
+		return location;
+	}
+
+	private void rotate() throws IOException {
+		final int sealedId = activeId;
+		channel(sealedId).force(false);
+		activeId = nextId++;
+		activeSize = 0;
+		channel(activeId);
+		writeHints(sealedId);
+	}
+
+	private byte[] read(final Location location) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(location.valueLength);
+		readFully(channel(location.segment), buffer, location.position + HEADER_SIZE + location.keyLength);
+		return buffer.array();
+	}
+
+	private void compactIfNeeded() {
+		final boolean needed;
+		synchronized (this) {
+			needed = garbageBytes > compactMinGarbage && garbageBytes > totalBytes * COMPACT_GARBAGE_RATIO;
+		}
+		if (needed && compacting.compareAndSet(false, true)) {
+			ThreadPool.getDefault().submit(PoolPriority.MIN, "compact " + dir.getName(), () -> {
+				try {
+					compact();
+				} catch (final IOException e) {
+					LOGGER.error("compact {}", dir, e);
+				} finally {
+					compacting.set(false);
+				}
+			});
+		}
+	}
+
+	private void compact() throws IOException {
+		final long start = System.currentTimeMillis();
+		final Set<Integer> sealedIds = new HashSet<>();
+		int outId;
+		lock.readLock().lock();
+		try {
+			synchronized (this) {
+				rotate();
+				sealedIds.addAll(segmentIds);
+				sealedIds.remove(activeId);
+				outId = nextId++;
+			}
+
+			// live records are copied with their sequence number so that newer writes still win on load
+			long outSize = 0;
+			for(final Entry<String, Location> entry: index.entrySet()) {
+				final Location location = entry.getValue();
+				if (!sealedIds.contains(location.segment)) {
+					continue;
+				}
+				if (outSize >= segmentSize) {
+					channel(outId).force(false);
+					writeHints(outId);
+					synchronized (this) {
+						outId = nextId++;
+					}
+					outSize = 0;
+				}
+				final byte[] value = read(location);
+				synchronized (this) {
+					final Location copy = append(outId, entry.getKey(), value, location.seq);
+					outSize += copy.getSize();
+					if (!index.replace(entry.getKey(), location, copy)) {
+						garbageBytes += copy.getSize();
+					}
+				}
+			}
+			channel(outId).force(false);
+			writeHints(outId);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		lock.writeLock().lock();
+		try {
+			synchronized (this) {
+				for(final int id: sealedIds) {
+					totalBytes -= deleteSegment(id);
+				}
+				long liveBytes = 0;
+				for(final Location location: index.values()) {
+					liveBytes += location.getSize();
+				}
+				garbageBytes = Math.max(0, totalBytes - liveBytes);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		LOGGER.info("compacted {} segments in {}ms ({})", sealedIds.size(), System.currentTimeMillis()-start, dir);
+	}
+
+	private long deleteSegment(final int id) throws IOException {
+		final FileChannel channel = channels.remove(id);
+		if (channel != null) {
+			channel.close();
+		}
+		segmentIds.remove(id);
+		final long size = getSegmentFile(id).length();
+		Files.deleteIfExists(getSegmentFile(id).toPath());
+		Files.deleteIfExists(getHintFile(id).toPath());
+		return size;
+	}
+
+	private FileChannel channel(final int id) throws IOException {
+		FileChannel channel = channels.get(id);
+		if (channel == null) {
+			synchronized (channels) {
+				channel = channels.get(id);
+				if (channel == null) {
+					channel = FileChannel.open(getSegmentFile(id).toPath()
+							, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+					channels.put(id, channel);
+					segmentIds.add(id);
+				}
+			}
+		}
+		return channel;
+	}
+
+	private File getSegmentFile(final int id) {
+		return new File(dir, String.format("%08d", id) + SEGMENT_EXT);
+	}
+
+	private File getHintFile(final int id) {
+		return new File(dir, String.format("%08d", id) + HINT_EXT);
+	}
+
+	private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package net.anfoya.mail.gmail.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache bounded by weight, with W-TinyLFU eviction: new entries go to a small LRU window and
+ * are admitted to the main segmented LRU only when they were used more often than the entry they replace.
+ */
+public class TinyLfuCache<K, V> {
+	private static final double WINDOW_RATIO = .01;
+	private static final double PROTECTED_RATIO = .8;
+	private static final int MAX_FREQUENCY = 15;
+
+	private static class Node<V> {
+		private final V value;
+		private final long weight;
+
+		private Node(final V value, final long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	// count-min sketch of recent access frequencies, halved periodically so that old hits fade out
+	private static class FrequencySketch {
+		private static final int[] SEEDS = { 0x97cb3127, 0xb5ad4ece, 0x3c6ef372, 0x9e3779b9 };
+
+		private int[] table;
+		private int mask;
+		private int additions;
+		private int sampleSize;
+
+		private FrequencySketch() {
+			ensureCapacity(16);
+		}
+
+		private void ensureCapacity(final int entries) {
+			final int size = Integer.highestOneBit(Math.max(16, entries) - 1) << 1;
+			if (table != null && table.length >= size) {
+				return;
+			}
+			table = new int[size];
+			mask = size - 1;
+			additions = 0;
+			sampleSize = 10 * size;
+		}
+
+		private int frequency(final Object key) {
+			final int hash = spread(key.hashCode());
+			int frequency = MAX_FREQUENCY;
+			for(final int seed: SEEDS) {
+				frequency = Math.min(frequency, table[index(hash, seed)]);
+			}
+			return frequency;
+		}
+
+		private void increment(final Object key) {
+			final int hash = spread(key.hashCode());
+			boolean added = false;
+			for(final int seed: SEEDS) {
+				final int i = index(hash, seed);
+				if (table[i] < MAX_FREQUENCY) {
+					table[i]++;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize) {
+				for(int i=0; i<table.length; i++) {
+					table[i] >>>= 1;
+				}
+				additions /= 2;
+			}
+		}
+
+		private int index(final int hash, final int seed) {
+			final int h = (hash ^ seed) * 0x9e3779b1;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		private static int spread(final int hash) {
+			final int h = hash * 0x85ebca6b;
+			return h ^ (h >>> 13);
+		}
+	}
+
+	private final LinkedHashMap<K, Node<V>> window;
+	private final LinkedHashMap<K, Node<V>> probation;
+	private final LinkedHashMap<K, Node<V>> protect;
+	private final FrequencySketch sketch;
+
+	private long maxWeight;
+	private long windowWeight;
+	private long probationWeight;
+	private long protectWeight;
+
+	public TinyLfuCache(final long maxWeight) {
+		window = new LinkedHashMap<>(16, .75f, true);
+		probation = new LinkedHashMap<>(16, .75f, true);
+		protect = new LinkedHashMap<>(16, .75f, true);
+		sketch = new FrequencySketch();
+
+		this.maxWeight = maxWeight;
+	}
+
+	public synchronized V get(final K key) {
+		sketch.increment(key);
+
+		Node<V> node = window.get(key);
+		if (node != null) {
+			return node.value;
+		}
+		node = protect.get(key);
+		if (node != null) {
+			return node.value;
+		}
+		node = probation.remove(key);
+		if (node != null) {
+			// second hit in the main space, promote
+			probationWeight -= node.weight;
+			protect.put(key, node);
+			protectWeight += node.weight;
+			while (protectWeight > getProtectMax() && protect.size() > 1) {
+				final Map.Entry<K, Node<V>> eldest = protect.entrySet().iterator().next();
+				protect.remove(eldest.getKey());
+				protectWeight -= eldest.getValue().weight;
+				probation.put(eldest.getKey(), eldest.getValue());
+				probationWeight += eldest.getValue().weight;
+			}
+			return node.value;
+		}
+		return null;
+	}
+
+	public synchronized boolean containsKey(final K key) {
+		// doesn't count as an access
+		return window.containsKey(key) || protect.containsKey(key) || probation.containsKey(key);
+	}
+
+	public synchronized void put(final K key, final V value, final long weight) {
+		remove(key);
+		if (weight > maxWeight) {
+			return;
+		}
+		sketch.increment(key);
+		sketch.ensureCapacity(window.size() + probation.size() + protect.size() + 1);
+
+		window.put(key, new Node<>(value, weight));
+		windowWeight += weight;
+		evict();
+	}
+
+	public synchronized void remove(final K key) {
+		Node<V> node;
+		if ((node = window.remove(key)) != null) {
+			windowWeight -= node.weight;
+		} else if ((node = probation.remove(key)) != null) {
+			probationWeight -= node.weight;
+		} else if ((node = protect.remove(key)) != null) {
+			protectWeight -= node.weight;
+		}
+	}
+
+	public synchronized void clear() {
+		window.clear();
+		probation.clear();
+		protect.clear();
+		windowWeight = probationWeight = protectWeight = 0;
+	}
+
+	public synchronized void setMaxWeight(final long maxWeight) {
+		this.maxWeight = maxWeight;
+		evict();
+	}
+
+	public synchronized long getWeight() {
+		return windowWeight + probationWeight + protectWeight;
+	}
+
+	private void evict() {
+		// window overflow becomes candidate for the main space
+		final long windowMax = (long) (maxWeight * WINDOW_RATIO);
+		while (windowWeight > windowMax && !window.isEmpty()) {
+			final Map.Entry<K, Node<V>> eldest = window.entrySet().iterator().next();
+			window.remove(eldest.getKey());
+			windowWeight -= eldest.getValue().weight;
+			probation.put(eldest.getKey(), eldest.getValue());
+			probationWeight += eldest.getValue().weight;
+			evictMain(eldest.getKey());
+		}
+		evictMain(null);
+	}
+
+	private void evictMain(final K candidate) {
+		final long mainMax = maxWeight - Math.min(windowWeight, (long) (maxWeight * WINDOW_RATIO));
+		while (probationWeight + protectWeight > mainMax) {
+			final K victim = getVictim(candidate);
+			if (victim == null) {
+				remove(candidate);
+				return;
+			}
+			if (candidate != null && probation.containsKey(candidate)
+					&& sketch.frequency(candidate) <= sketch.frequency(victim)) {
+				// not used more than what it would replace, not admitted
+				remove(candidate);
+				return;
+			}
+			remove(victim);
+		}
+	}
+
+	private K getVictim(final K candidate) {
+		final K victim = getEldest(probation, candidate);
+		return victim != null? victim: getEldest(protect, candidate);
+	}
+
+	private K getEldest(final Map<K, Node<V>> segment, final K excluded) {
+		final Iterator<K> keys = segment.keySet().iterator();
+		while (keys.hasNext()) {
+			final K key = keys.next();
+			if (!key.equals(excluded)) {
+				return key;
+			}
+		}
+		return null;
+	}
+
+	private long getProtectMax() {
+		return (long) ((maxWeight - maxWeight * WINDOW_RATIO) * PROTECTED_RATIO);
+	}
+}
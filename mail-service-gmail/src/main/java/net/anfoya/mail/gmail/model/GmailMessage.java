@@ -32,15 +32,24 @@ public class GmailMessage extends SimpleMessage {
 	}
 
 	private final String snippet;
+	private final Integer sizeEstimate;
 
 	public GmailMessage(final Message message) throws MessagingException {
 		super(message.getId(), false, getMimeMessage(message));
 		snippet = message.getSnippet();
+		sizeEstimate = message.getSizeEstimate();
+	}
+
+	public GmailMessage(final Message message, final MimeMessage mimeMessage) {
+		super(message.getId(), false, mimeMessage);
+		snippet = message.getSnippet();
+		sizeEstimate = message.getSizeEstimate();
 	}
 
 	public GmailMessage(final Draft draft) throws MessagingException {
 		super(draft.getId(), true, getMimeMessage(draft.getMessage()));
 		snippet = draft.getMessage().getSnippet();
+		sizeEstimate = draft.getMessage().getSizeEstimate();
 	}
 
 	@Override
@@ -48,6 +57,12 @@ public class GmailMessage extends SimpleMessage {
 		return snippet;
 	}
 
+	@Override
+	public int getSize() {
+		// a message built from its payload has no size of its own
+		return sizeEstimate == null? super.getSize(): sizeEstimate;
+	}
+
 	public String getRaw() throws IOException, MessagingException {
 		return toRaw(getMimeMessage());
 	}
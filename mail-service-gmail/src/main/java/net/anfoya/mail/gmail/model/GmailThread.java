@@ -1,12 +1,14 @@
 package net.anfoya.mail.gmail.model;
 
 import java.text.ParseException;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.regex.Pattern;
 
 import javax.mail.internet.MailDateFormat;
 
@@ -14,6 +16,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePartHeader;
 import com.google.api.services.gmail.model.Thread;
 
 import net.anfoya.mail.model.SimpleThread;
@@ -21,27 +24,81 @@ import net.anfoya.mail.model.SimpleThread;
 @SuppressWarnings("serial")
 public class GmailThread extends SimpleThread {
 	private static final Logger LOGGER = LoggerFactory.getLogger(GmailThread.class);
+	private static final Pattern QUOTES = Pattern.compile("\"|'");
+	private static final ThreadLocal<MailDateFormat> DATE_FORMAT = ThreadLocal.withInitial(MailDateFormat::new);
+
+	// all fields read in one pass over the messages and the headers of the last one
+	private static class Fields {
+		private final Set<String> messageIds;
+		private final BitSet tagBits;
+		private final Set<String> recipients;
+		private String lastMessageId;
+		private String subject;
+		private String sender;
+		private Date date;
+
+		private Fields(final Thread thread, final LabelDictionary dictionary) {
+			final List<Message> messages = thread.getMessages() == null? Collections.emptyList(): thread.getMessages();
+
+			messageIds = new LinkedHashSet<>(messages.size() * 2);
+			final BitSet tagBits = new BitSet();
+			recipients = new HashSet<>();
+
+			Message last = null;
+			for(final Message m: messages) {
+				messageIds.add(m.getId());
+				final List<String> labelIds = m.getLabelIds();
+				if (labelIds != null) {
+					for(final String labelId: labelIds) {
+						tagBits.set(dictionary.getOrAdd(labelId));
+					}
+				}
+				// last message not sent by the user, or the first one if all were
+				if (last == null || labelIds == null || !labelIds.contains(GmailTag.SENT.getId())) {
+					last = m;
+				}
+			}
 
-	private static String findSubject(final Thread thread) {
-		return findHeader(thread, "Subject");
-	}
+			subject = "";
+			String from = "", received = "", dateHeader = "";
+			if (last != null) {
+				lastMessageId = last.getId();
+				if (last.getPayload() != null && last.getPayload().getHeaders() != null) {
+					for(final MessagePartHeader h: last.getPayload().getHeaders()) {
+						final String value = h.getValue();
+						if (value == null || value.isEmpty()) {
+							continue;
+						}
+						final String name = h.getName();
+						if ("To".equalsIgnoreCase(name)) {
+							recipients.add(cleanAddress(value));
+						} else if (subject.isEmpty() && "Subject".equalsIgnoreCase(name)) {
+							subject = value;
+						} else if (from.isEmpty() && "From".equalsIgnoreCase(name)) {
+							from = value;
+						} else if (received.isEmpty() && "Received".equalsIgnoreCase(name)) {
+							received = value;
+						} else if (dateHeader.isEmpty() && "Date".equalsIgnoreCase(name)) {
+							dateHeader = value;
+						}
+					}
+				}
+			}
 
-	private static Set<String> findRecipients(Thread thread) {
-		return findHeaders(thread, "To")
-				.stream()
-				.map(s -> cleanAddress(s))
-				.collect(Collectors.toSet());
-	}
+			this.tagBits = dictionary.canonical(tagBits);
+
+			if (messages.size() == 1 && tagBits.get(LabelDictionary.SENT)) {
+				sender = String.join(", ", recipients);
+			} else {
+				sender = cleanAddress(from);
+			}
 
-	private static String findSender(final Thread thread) {
-		if (thread.getMessages() != null
-				&& thread.getMessages().size() == 1
-				&& thread.getMessages().get(0).getLabelIds().contains(GmailTag.SENT.getId())) {
-			return findRecipients(thread)
-					.stream()
-					.reduce("", (s, r) -> s.length() == 0 ? r : ", " + r);
+			if (last != null && last.getInternalDate() != null) {
+				date = new Date(last.getInternalDate());
+			} else {
+				date = parseDate(received.isEmpty()? dateHeader: received);
+			}
 		}
-		return cleanAddress(findHeader(thread, "From"));
 	}
 
 	private static String cleanAddress(String address) {
@@ -49,18 +106,14 @@ public class GmailThread extends SimpleThread {
 		if (index != -1) {
 			address = address.substring(0, index);
 		}
-		return address.replaceAll("\"|'", "");
+		return QUOTES.matcher(address).replaceAll("");
 	}
 
-	private static Date findReceivedDate(final Thread thread) {
+	private static Date parseDate(String received) {
 		Date date;
-		String received = findHeader(thread, "Received");
-		if (received.isEmpty()) {
-			received = findHeader(thread, "Date");
-		}
 		try {
 			received = received.substring(received.lastIndexOf(";") + 1, received.length()).trim();
-			date = new MailDateFormat().parse(received);
+			date = DATE_FORMAT.get().parse(received);
 		} catch (final ParseException e) {
 			LOGGER.error("parse received date: {}", received, e);
 			date = null;
@@ -71,98 +124,45 @@ public class GmailThread extends SimpleThread {
 		return date;
 	}
 
-	private static Set<String> getMessageIds(final Thread thread) {
-		final Set<String> messageIds = new LinkedHashSet<>();
-		if (thread.getMessages() != null) {
-			for (final Message m : thread.getMessages()) {
-				messageIds.add(m.getId());
-			}
-		}
+	private final BitSet tagBits;
 
-		return messageIds;
+	public GmailThread(final Thread thread, final LabelDictionary dictionary) {
+		this(thread.getId(), new Fields(thread, dictionary), dictionary);
 	}
 
-	private static Message getLastMessage(Thread thread) {
-		final List<Message> messages = thread.getMessages();
-		if (messages == null || messages.isEmpty()) {
-			return null;
-		}
-
-		Message last = null;
-		for(int i=messages.size()-1; i>=0; i--) {
-			last = messages.get(i);
-			if (last.getLabelIds() == null || !last.getLabelIds().contains(GmailTag.SENT.getId())) {
-				break;
-			}
-		}
-		return last;
-	}
-
-	private static Set<String> getTagIds(final Thread thread) {
-		if (thread.getMessages() == null) {
-			return Collections.emptySet();
-		}
-
-		return thread
-				.getMessages()
-				.stream()
-				.filter(m -> m.getLabelIds() != null)
-				.flatMap(m -> m.getLabelIds().stream())
-				.collect(Collectors.toSet());
-	}
-
-	private static String findHeader(final Thread thread, final String key) {
-		final Set<String> headers = findHeaders(thread, key);
-		if (headers.isEmpty()) {
-			headers.add("");
-		}
-		return headers.iterator().next();
-	}
-
-	private static Set<String> findHeaders(final Thread thread, final String key) {
-		final Set<String> headers = new LinkedHashSet<>();
-		if (thread.getMessages() != null && !thread.getMessages().isEmpty()) {
-			final Message last = getLastMessage(thread);
-			if (last.getPayload() != null && last.getPayload().getHeaders() != null) {
-				last.getPayload().getHeaders().forEach(h -> {
-					if (!h.getValue().isEmpty() && h.getName().equalsIgnoreCase(key)) {
-						headers.add(h.getValue());
-					}
-				});
-			}
-		}
-
-		return headers;
-	}
-
-	public GmailThread(final Thread thread) {
-		this(thread.getId()
-				, findSubject(thread)
-				, getMessageIds(thread)
-				, getLastMessage(thread).getId()
-				, getTagIds(thread)
-				, findSender(thread)
-				, findRecipients(thread)
-				, findReceivedDate(thread));
+	private GmailThread(final String id, final Fields fields, final LabelDictionary dictionary) {
+		this(id
+				, fields.subject
+				, fields.messageIds
+				, fields.lastMessageId
+				, dictionary.toSet(fields.tagBits)
+				, fields.sender
+				, fields.recipients
+				, fields.date);
 	}
 
 	public GmailThread(final String id, final String subject, final Set<String> messageIds, final String lastMessageId, final Set<String> tagIds,
 			final String sender, final Set<String> recipients, final Date received) {
 		super(id, subject, messageIds, lastMessageId, tagIds, sender, recipients, received);
+		tagBits = tagIds instanceof TagIdSet? ((TagIdSet) tagIds).getBits(): null;
+	}
+
+	public boolean hasAnyTag(final BitSet tags) {
+		return tagBits != null && tagBits.intersects(tags);
 	}
 
 	@Override
 	public boolean isUnread() {
-		return getTagIds().contains(GmailTag.UNREAD.getId());
+		return tagBits == null? getTagIds().contains(GmailTag.UNREAD.getId()): tagBits.get(LabelDictionary.UNREAD);
 	}
 
 	@Override
 	public boolean isFlagged() {
-		return getTagIds().contains(GmailTag.STARRED.getId());
+		return tagBits == null? getTagIds().contains(GmailTag.STARRED.getId()): tagBits.get(LabelDictionary.STARRED);
 	}
 
 	@Override
 	public boolean isSpam() {
-		return getTagIds().contains(GmailTag.SPAM.getId());
+		return tagBits == null? getTagIds().contains(GmailTag.SPAM.getId()): tagBits.get(LabelDictionary.SPAM);
 	}
 }
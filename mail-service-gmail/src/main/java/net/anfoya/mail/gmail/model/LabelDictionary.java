@@ -0,0 +1,86 @@
+package net.anfoya.mail.gmail.model;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps label ids of an account to dense ints so that tag sets can be stored as bitsets.
+ * Bitsets returned by {@link #toBits(Collection)} are shared and must not be modified.
+ */
+@SuppressWarnings("serial")
+public class LabelDictionary implements Serializable {
+	// fixed indexes for the tags tested on every row
+	public static final int UNREAD = 0;
+	public static final int STARRED = 1;
+	public static final int SPAM = 2;
+	public static final int SENT = 3;
+	public static final int DRAFT = 4;
+	public static final int TRASH = 5;
+	public static final int INBOX = 6;
+
+	private final Map<String, Integer> idIndexes;
+	private final Map<BitSet, BitSet> canonicalBits;
+	private final Map<BitSet, TagIdSet> canonicalSets;
+	private volatile String[] ids;
+
+	public LabelDictionary() {
+		idIndexes = new ConcurrentHashMap<>();
+		canonicalBits = new ConcurrentHashMap<>();
+		canonicalSets = new ConcurrentHashMap<>();
+		ids = new String[0];
+
+		for(final GmailTag tag: new GmailTag[] {
+				GmailTag.UNREAD, GmailTag.STARRED, GmailTag.SPAM, GmailTag.SENT, GmailTag.DRAFT, GmailTag.TRASH, GmailTag.INBOX }) {
+			getOrAdd(tag.getId());
+		}
+	}
+
+	public int indexOf(final String id) {
+		final Integer index = idIndexes.get(id);
+		return index == null? -1: index;
+	}
+
+	public String get(final int index) {
+		return ids[index];
+	}
+
+	public int getOrAdd(final String id) {
+		final Integer index = idIndexes.get(id);
+		return index != null? index: add(id);
+	}
+
+	private synchronized int add(final String id) {
+		Integer index = idIndexes.get(id);
+		if (index == null) {
+			index = ids.length;
+			final String[] ids = Arrays.copyOf(this.ids, index + 1);
+			ids[index] = id.intern();
+			this.ids = ids;
+			idIndexes.put(ids[index], index);
+		}
+		return index;
+	}
+
+	public BitSet toBits(final Collection<String> ids) {
+		final BitSet bits = new BitSet();
+		for(final String id: ids) {
+			bits.set(getOrAdd(id));
+		}
+		return canonical(bits);
+	}
+
+	public BitSet canonical(final BitSet bits) {
+		// threads mostly share a handful of tag combinations
+		final BitSet shared = canonicalBits.putIfAbsent(bits, bits);
+		return shared == null? bits: shared;
+	}
+
+	public TagIdSet toSet(final BitSet bits) {
+		// shared like the bitsets, lists read each distinct set once
+		return canonicalSets.computeIfAbsent(canonical(bits), b -> new TagIdSet(b, this));
+	}
+}
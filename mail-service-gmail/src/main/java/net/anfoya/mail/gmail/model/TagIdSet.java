@@ -0,0 +1,63 @@
+package net.anfoya.mail.gmail.model;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only set of tag ids backed by a bitset of {@link LabelDictionary} indexes.
+ */
+@SuppressWarnings("serial")
+public class TagIdSet extends AbstractSet<String> implements Serializable {
+	private final BitSet bits;
+	private final LabelDictionary dictionary;
+	private final int size;
+
+	public TagIdSet(final BitSet bits, final LabelDictionary dictionary) {
+		this.bits = bits;
+		this.dictionary = dictionary;
+		size = bits.cardinality();
+	}
+
+	public BitSet getBits() {
+		return bits;
+	}
+
+	@Override
+	public boolean contains(final Object o) {
+		if (!(o instanceof String)) {
+			return false;
+		}
+		final int index = dictionary.indexOf((String) o);
+		return index != -1 && bits.get(index);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			private int index = bits.nextSetBit(0);
+
+			@Override
+			public boolean hasNext() {
+				return index != -1;
+			}
+
+			@Override
+			public String next() {
+				if (index == -1) {
+					throw new NoSuchElementException();
+				}
+				final String id = dictionary.get(index);
+				index = bits.nextSetBit(index + 1);
+				return id;
+			}
+		};
+	}
+}
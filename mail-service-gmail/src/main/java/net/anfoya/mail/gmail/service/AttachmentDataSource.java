@@ -0,0 +1,82 @@
+package net.anfoya.mail.gmail.service;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+/**
+ * Attachment body left on the server until it is read, then served from the attachment cache.
+ */
+public class AttachmentDataSource implements DataSource {
+	private final MessageService messageService;
+	private final String messageId;
+	private final String partId;
+	private final String attachmentId;
+	private final String contentType;
+	private final String name;
+
+	public AttachmentDataSource(final MessageService messageService
+			, final String messageId, final String partId, final String attachmentId
+			, final String contentType, final String name) {
+		this.messageService = messageService;
+		this.messageId = messageId;
+		this.partId = partId;
+		this.attachmentId = attachmentId;
+		this.contentType = contentType;
+		this.name = name;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		// getContent() asks for a stream when listing parts, download only on first read
+		return new InputStream() {
+			private InputStream in;
+
+			private InputStream getIn() throws IOException {
+				if (in == null) {
+					try {
+						in = new FileInputStream(messageService.getAttachment(messageId, partId, attachmentId));
+					} catch (final MessageException e) {
+						throw new IOException("download attachment " + partId + " of message " + messageId, e);
+					}
+				}
+				return in;
+			}
+
+			@Override
+			public int read() throws IOException {
+				return getIn().read();
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len) throws IOException {
+				return getIn().read(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (in != null) {
+					in.close();
+				}
+			}
+		};
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("read only");
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+}
@@ -125,6 +125,12 @@ public class AuthenticationService {
 		return exception;
 	}
 
+	public void fail(final GMailException e) {
+		LOGGER.error("authentication", e);
+		exception = e;
+		authFailedCallback.run();
+	}
+
 	public void authenticate() {
 		final GoogleClientSecrets clientSecrets;
 		try {
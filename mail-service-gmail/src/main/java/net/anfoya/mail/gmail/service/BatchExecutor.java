@@ -0,0 +1,209 @@
+package net.anfoya.mail.gmail.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.gmail.Gmail;
+
+public class BatchExecutor {
+	private static final Logger LOGGER = LoggerFactory.getLogger(BatchExecutor.class);
+
+	public static final int DEFAULT_CHUNK_SIZE = 50;
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	public interface RequestFactory<T> {
+		AbstractGoogleJsonClientRequest<T> create(String id) throws IOException;
+	}
+
+	public static class BatchResult<T> {
+		private final List<String> ids;
+		// requests without a response body succeed with a null result
+		private final Set<String> succeededIds;
+		private final Map<String, T> idResults;
+		private final Map<String, GoogleJsonError> idFailures;
+
+		private BatchResult(final List<String> ids) {
+			this.ids = ids;
+			succeededIds = ConcurrentHashMap.newKeySet();
+			idResults = new ConcurrentHashMap<>();
+			idFailures = new ConcurrentHashMap<>();
+		}
+
+		private void succeed(final String id, final T t) {
+			if (t != null) {
+				idResults.put(id, t);
+			}
+			succeededIds.add(id);
+			idFailures.remove(id);
+		}
+
+		public List<T> getResults() {
+			final List<T> results = new ArrayList<>();
+			for(final String id: ids) {
+				final T t = idResults.get(id);
+				if (t != null) {
+					results.add(t);
+				}
+			}
+			return results;
+		}
+
+		public Map<String, GoogleJsonError> getFailures() {
+			return Collections.unmodifiableMap(idFailures);
+		}
+
+		public boolean hasFailures() {
+			return !idFailures.isEmpty();
+		}
+	}
+
+	private final Gmail gmail;
+	private final RetryExecutor retryExecutor;
+	private final int chunkSize;
+	private final ExecutorService executor;
+
+	public BatchExecutor(final Gmail gmail, final RetryExecutor retryExecutor) {
+		this(gmail, retryExecutor, DEFAULT_CHUNK_SIZE, DEFAULT_PARALLELISM);
+	}
+
+	public BatchExecutor(final Gmail gmail, final RetryExecutor retryExecutor, final int chunkSize, final int parallelism) {
+		this.gmail = gmail;
+		this.retryExecutor = retryExecutor;
+		this.chunkSize = chunkSize;
+
+		final AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(parallelism, r -> {
+			final Thread thread = new Thread(r, "gmail-batch-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public <T> BatchResult<T> execute(final Collection<String> ids, final RequestFactory<T> factory) throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		final List<String> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+		final BatchResult<T> result = new BatchResult<>(idList);
+
+		final List<List<String>> chunks = new ArrayList<>();
+		for(int i=0; i<idList.size(); i+=chunkSize) {
+			chunks.add(idList.subList(i, Math.min(i + chunkSize, idList.size())));
+		}
+
+		if (chunks.size() == 1) {
+			// no need to hand over a single chunk
+			executeChunk(chunks.get(0), factory, result);
+		} else if (chunks.size() > 1) {
+			// a failing chunk never stops its siblings, its items are reported as failures
+			final List<Future<?>> futures = new ArrayList<>();
+			for(final List<String> chunk: chunks) {
+				futures.add(executor.submit(() -> executeChunk(chunk, factory, result)));
+			}
+			for(final Future<?> f: futures) {
+				try {
+					f.get();
+				} catch (final ExecutionException e) {
+					LOGGER.error("execute batch chunk", e.getCause());
+				}
+			}
+		}
+		fail(idList, result, "not processed");
+
+		LOGGER.debug("executed batch of {} items in {} chunks in {}ms ({} failures)", idList.size(), chunks.size(), System.currentTimeMillis()-start, result.idFailures.size());
+		return result;
+	}
+
+	private <T> void executeChunk(final List<String> ids, final RequestFactory<T> factory, final BatchResult<T> result) {
+		List<String> pendingIds = ids;
+		for(int attempt=1; !pendingIds.isEmpty(); attempt++) {
+			final Map<String, HttpHeaders> retryIdHeaders = new LinkedHashMap<>();
+			try {
+				final BatchRequest batch = gmail.batch();
+				for(final String id: pendingIds) {
+					final AbstractGoogleJsonClientRequest<T> request = factory.create(id);
+					retryExecutor.getQuotaBucket().acquire(request);
+					request.queue(batch, new JsonBatchCallback<T>() {
+						@Override
+						public void onSuccess(final T t, final HttpHeaders responseHeaders) {
+							result.succeed(id, t);
+						}
+						@Override
+						public void onFailure(final GoogleJsonError e, final HttpHeaders responseHeaders) {
+							result.idFailures.put(id, e);
+							if (retryExecutor.isRetryable(e.getCode(), e)) {
+								retryIdHeaders.put(id, responseHeaders);
+							}
+						}
+					});
+				}
+				batch.execute();
+			} catch (final IOException e) {
+				for(final String id: fail(pendingIds, result, e.getMessage())) {
+					retryIdHeaders.putIfAbsent(id, null);
+				}
+			} catch (final RuntimeException e) {
+				LOGGER.error("execute batch chunk", e);
+				fail(pendingIds, result, e.toString());
+				return;
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail(pendingIds, result, "interrupted");
+				return;
+			}
+
+			if (retryIdHeaders.isEmpty() || attempt >= retryExecutor.getMaxAttempts()) {
+				break;
+			}
+
+			// retry failed items only, honouring the server's Retry-After if any
+			HttpHeaders headers = null;
+			for(final HttpHeaders h: retryIdHeaders.values()) {
+				if (h != null && h.getRetryAfter() != null) {
+					headers = h;
+				}
+			}
+			LOGGER.warn("retry {} batch items (attempt {}/{})", retryIdHeaders.size(), attempt, retryExecutor.getMaxAttempts());
+			try {
+				retryExecutor.sleep(attempt, headers);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			pendingIds = new ArrayList<>(retryIdHeaders.keySet());
+		}
+	}
+
+	private static List<String> fail(final List<String> ids, final BatchResult<?> result, final String message) {
+		// items without a result nor a failure of their own
+		final GoogleJsonError error = new GoogleJsonError();
+		error.setMessage(message);
+		final List<String> failedIds = new ArrayList<>();
+		for(final String id: ids) {
+			if (!result.succeededIds.contains(id)) {
+				result.idFailures.putIfAbsent(id, error);
+				failedIds.add(id);
+			}
+		}
+		return failedIds;
+	}
+}
@@ -0,0 +1,18 @@
+package net.anfoya.mail.gmail.service;
+
+/**
+ * Tells {@link HistoryService} when the mailbox may have changed, each signal triggers a history pull.
+ */
+public interface ChangeSource {
+
+	void start(Runnable onChange);
+
+	void stop();
+
+	default void setForeground(final boolean foreground) {
+	}
+
+	// called when a pull completes, active when history records were found
+	default void pulled(final boolean active) {
+	}
+}
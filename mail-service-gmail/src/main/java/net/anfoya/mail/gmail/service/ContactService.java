@@ -1,63 +1,288 @@
 package net.anfoya.mail.gmail.service;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gdata.client.Query;
 import com.google.gdata.client.contacts.ContactsService;
+import com.google.gdata.data.DateTime;
+import com.google.gdata.data.Link;
 import com.google.gdata.data.contacts.ContactEntry;
 import com.google.gdata.data.contacts.ContactFeed;
+import com.google.gdata.data.extensions.Email;
 
-import net.anfoya.java.util.concurrent.ThreadPool.PoolPriority;
-import net.anfoya.java.util.concurrent.ThreadPool;
+import net.anfoya.java.util.system.ShutdownHook;
+import net.anfoya.mail.gmail.cache.CacheStore;
+import net.anfoya.mail.gmail.cache.SegmentStore;
+import net.anfoya.mail.gmail.model.GmailContact;
+import net.anfoya.mail.service.ContactIndex;
 
-
-//TODO: refresh contacts
 public class ContactService {
 	private static final Logger LOGGER = LoggerFactory.getLogger(ContactService.class);
 
+	// contact ids are urls, this key can't collide
+	private static final String UPDATED_KEY = "updated";
+	private static final int PAGE_SIZE = 500;
+	private static final long REFRESH_PERIOD_MS = 60 * 60 * 1000;
+	// deleted entries are only reported for a few weeks, older stores are reloaded
+	private static final long INCREMENTAL_MAX_AGE_MS = 25L * 24 * 60 * 60 * 1000;
+	// updated-min is compared to server time, allow for clock skew
+	private static final long CLOCK_SKEW_MS = 5 * 60 * 1000;
+
 	private final ContactsService gcontact;
 	private final String user;
-	private final Set<ContactEntry> contacts;
+	private final SegmentStore contactStore;
+	private final Map<String, List<GmailContact>> idContacts;
 
-	private Future<List<ContactEntry>> future;
+	// bumped by clearCache(), a sync started before is dropped
+	private final AtomicLong generation;
 
-	public ContactService(final ContactsService gcontact, final String user) {
+	private volatile boolean indexStale;
+	private ContactIndex<GmailContact> index;
+	private Timer timer;
+
+	public ContactService(final ContactsService gcontact, final String user, final File cacheDir) {
 		this.gcontact = gcontact;
 		this.user = user;
 
-		contacts = new LinkedHashSet<ContactEntry>();
-	}
+		contactStore = CacheStore.open(new File(cacheDir, "contacts"));
+		idContacts = new ConcurrentHashMap<>();
+		generation = new AtomicLong();
 
-	public ContactService init() {
-		future = ThreadPool.getDefault().submit(PoolPriority.MIN, "get contacts", () -> {
-			final Query query = new Query(new URL("https://www.google.com/m8/feeds/contacts/" + user + "/full"));
-			query.setMaxResults(10000);
-			return gcontact.query(query, ContactFeed.class).getEntries();
+		new ShutdownHook(() -> {
+			stop();
+			if (contactStore != null) {
+				contactStore.close();
+			}
 		});
+	}
+
+	public synchronized ContactService init() {
+		load();
+		if (timer == null) {
+			timer = new Timer("contact-sync-timer", true);
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					sync();
+				}
+			}, 0, REFRESH_PERIOD_MS);
+		}
 		return this;
 	}
 
-	public synchronized Set<ContactEntry> getAll() throws ContactException {
-		if (contacts.isEmpty()) {
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	public Set<GmailContact> getAll() {
+		// served from the store while the first sync is still streaming
+		final Set<GmailContact> contacts = new LinkedHashSet<>();
+		idContacts.values().forEach(contacts::addAll);
+		return contacts;
+	}
+
+	public synchronized ContactIndex<GmailContact> getIndex() {
+		// shared by all composers, rebuilt once contacts changed
+		if (index == null || indexStale) {
+			indexStale = false;
+			index = new ContactIndex<>(getAll(), index);
+		}
+		return index;
+	}
+
+	private void load() {
+		if (contactStore == null) {
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		for(final String id: contactStore.keySet()) {
+			if (UPDATED_KEY.equals(id)) {
+				continue;
+			}
 			try {
-				contacts.addAll(future.get());
-				LOGGER.info("loaded {} contacts", contacts.size());
-			} catch (InterruptedException | ExecutionException e) {
-				throw new ContactException("get contacts", e);
+				idContacts.put(id, decode(contactStore.get(id)));
+			} catch (final IOException e) {
+				LOGGER.error("read contact {}", id, e);
 			}
 		}
-		return contacts;
+		LOGGER.info("loaded {} contacts in {}ms", idContacts.size(), System.currentTimeMillis()-start);
+	}
+
+	private void sync() {
+		// always runs on the timer thread
+		final long start = System.currentTimeMillis();
+		final long generation = this.generation.get();
+		final long updated = getUpdated();
+		final boolean incremental = updated > 0 && start - updated < INCREMENTAL_MAX_AGE_MS;
+		final Set<String> seenIds = new HashSet<>();
+		int count = 0;
+		try {
+			final Query query = new Query(new URL("https://www.google.com/m8/feeds/contacts/" + user + "/full"));
+			query.setMaxResults(PAGE_SIZE);
+			if (incremental) {
+				query.setUpdatedMin(new DateTime(updated - CLOCK_SKEW_MS));
+				query.setStringCustomParameter("showdeleted", "true");
+			}
+
+			ContactFeed feed = gcontact.query(query, ContactFeed.class);
+			while (true) {
+				for(final ContactEntry entry: feed.getEntries()) {
+					if (entry.hasDeleted()) {
+						remove(entry.getId());
+					} else {
+						put(entry);
+						seenIds.add(entry.getId());
+					}
+					count++;
+				}
+				final Link next = feed.getNextLink();
+				if (next == null || generation != this.generation.get()) {
+					break;
+				}
+				feed = gcontact.getFeed(new URL(next.getHref()), ContactFeed.class);
+			}
+
+			synchronized (this) {
+				if (generation != this.generation.get()) {
+					// cache was cleared meanwhile, the next sync is a full one
+					LOGGER.info("contact sync dropped, cache cleared");
+					return;
+				}
+				if (!incremental) {
+					// entries deleted since the last sync, kept until the full list is known
+					for(final String id: idContacts.keySet()) {
+						if (!seenIds.contains(id)) {
+							remove(id);
+						}
+					}
+				}
+				setUpdated(start);
+			}
+		} catch (final Exception e) {
+			// next sync resumes from the last complete one
+			LOGGER.error("sync contacts", e);
+		} finally {
+			LOGGER.info("synced {} contacts ({}) in {}ms", count, incremental? "incremental": "full", System.currentTimeMillis()-start);
+		}
+	}
+
+	private void put(final ContactEntry entry) throws IOException {
+		if (entry.getEmailAddresses() == null
+				|| entry.getName() == null
+				|| entry.getName().getFullName() == null) {
+			remove(entry.getId());
+			return;
+		}
+
+		final String fullName = entry.getName().getFullName().getValue() == null? "": entry.getName().getFullName().getValue();
+		final List<GmailContact> contacts = new ArrayList<>();
+		for(final Email e: entry.getEmailAddresses()) {
+			if (e.getAddress() != null) {
+				contacts.add(new GmailContact(e.getAddress(), fullName));
+			}
+		}
+		idContacts.put(entry.getId(), Collections.unmodifiableList(contacts));
+		indexStale = true;
+		if (contactStore != null) {
+			contactStore.put(entry.getId(), encode(contacts));
+		}
+	}
+
+	private void remove(final String id) throws IOException {
+		if (idContacts.remove(id) != null) {
+			indexStale = true;
+			if (contactStore != null) {
+				contactStore.remove(id);
+			}
+		}
+	}
+
+	private long getUpdated() {
+		try {
+			final byte[] bytes = contactStore == null? null: contactStore.get(UPDATED_KEY);
+			return bytes == null? 0: ByteBuffer.wrap(bytes).getLong();
+		} catch (final IOException e) {
+			return 0;
+		}
+	}
+
+	private void setUpdated(final long updated) throws IOException {
+		if (contactStore != null) {
+			contactStore.put(UPDATED_KEY, ByteBuffer.allocate(Long.BYTES).putLong(updated).array());
+		}
+	}
+
+	private void clear() throws IOException {
+		idContacts.clear();
+		indexStale = true;
+		if (contactStore != null) {
+			contactStore.clear();
+		}
+	}
+
+	private static byte[] encode(final List<GmailContact> contacts) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(contacts.size());
+		for(final GmailContact c: contacts) {
+			out.writeUTF(c.getEmail());
+			out.writeUTF(c.getFullname());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static List<GmailContact> decode(final byte[] bytes) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		final int size = in.readUnsignedShort();
+		final List<GmailContact> contacts = new ArrayList<>(size);
+		for(int i=0; i<size; i++) {
+			contacts.add(new GmailContact(in.readUTF(), in.readUTF()));
+		}
+		return Collections.unmodifiableList(contacts);
 	}
 
 	public void clearCache() {
-		contacts.clear();
+		// contacts are reloaded right away instead of staying empty until restart
+		synchronized (this) {
+			generation.incrementAndGet();
+			try {
+				clear();
+			} catch (final IOException e) {
+				LOGGER.error("clear contacts", e);
+			}
+			if (timer != null) {
+				timer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						sync();
+					}
+				}, 0);
+			}
+		}
 	}
 }
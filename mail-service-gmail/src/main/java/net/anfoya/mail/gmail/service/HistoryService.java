@@ -1,20 +1,22 @@
 package net.anfoya.mail.gmail.service;
 
 import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.History;
 import com.google.api.services.gmail.model.ListHistoryResponse;
@@ -22,29 +24,40 @@ import com.google.api.services.gmail.model.Message;
 
 import javafx.beans.property.ReadOnlyBooleanProperty;
 import javafx.beans.property.ReadOnlyBooleanWrapper;
-import javafx.util.Duration;
 import net.anfoya.java.io.SerializedFile;
 import net.anfoya.java.util.VoidCallback;
 import net.anfoya.java.util.concurrent.ThreadPool;
 import net.anfoya.java.util.concurrent.ThreadPool.PoolPriority;
 import net.anfoya.java.util.system.ShutdownHook;
 
-public class HistoryService extends TimerTask {
+public class HistoryService {
 	private static final Logger LOGGER = LoggerFactory.getLogger(HistoryService.class);
-	private static final String FILE_PREFIX = System.getProperty("java.io.tmpdir") + File.separatorChar + "fsm-cache-history-id-";
+	private static final List<String> HISTORY_TYPES = Arrays.asList("labelAdded", "labelRemoved", "messageAdded", "messageDeleted");
+	private static final int HISTORY_EXPIRED = 404;
 
 	private final Gmail gmail;
+	private final RetryExecutor retryExecutor;
 	private final String user;
+	private final String historyIdFilename;
 	private final ReadOnlyBooleanWrapper disconnected;
+	private final Set<VoidCallback<List<History>>> historyCallBacks;
 	private final Set<VoidCallback<Set<Message>>> updateMessageCallBacks;
 	private final Set<VoidCallback<Set<Message>>> addedMessageCallBacks;
 	private final Set<Runnable> updateLabelCallBacks;
+	private final Set<Runnable> resyncCallBacks;
 
-	private Timer timer;
+	private final AtomicBoolean pulling;
+	private final AtomicBoolean resyncRequired;
+	private volatile boolean pullRequested;
+
+	// guards the change source, getUpdates() holds the service monitor for the length of a pull
+	private final Object sourceLock;
+	private volatile ChangeSource changeSource;
 	private BigInteger historyId;
 
-	public HistoryService(final Gmail gmail, final String user) {
+	public HistoryService(final Gmail gmail, final RetryExecutor retryExecutor, final String user, final File cacheDir) {
 		this.gmail = gmail;
+		this.retryExecutor = retryExecutor;
 		this.user = user;
 
 		disconnected = new ReadOnlyBooleanWrapper();
@@ -54,36 +67,68 @@ public class HistoryService extends TimerTask {
 			}
 		});
 
-		final SerializedFile<BigInteger> file = new SerializedFile<>(FILE_PREFIX + user);
+		historyIdFilename = new File(cacheDir, "history-id").getPath();
 		try {
-			historyId = file.load();
+			historyId = new SerializedFile<BigInteger>(historyIdFilename).load();
 		} catch (final Exception e) {
 			historyId = null;
 		}
 
+		historyCallBacks = new LinkedHashSet<>();
 		updateMessageCallBacks = new LinkedHashSet<>();
 		addedMessageCallBacks = new LinkedHashSet<>();
 		updateLabelCallBacks = new LinkedHashSet<>();
-		
+		resyncCallBacks = new LinkedHashSet<>();
+
+		pulling = new AtomicBoolean();
+		resyncRequired = new AtomicBoolean();
+		sourceLock = new Object();
+
 		new ShutdownHook(() -> {
 			LOGGER.info("saving...");
-			new SerializedFile<>(FILE_PREFIX + user).save(historyId);
+			saveHistoryId();
 		});
 	}
 
-	public void start(final Duration pullPeriod) {
-		final long period = (long) pullPeriod.toMillis();
-		timer = new Timer("history-pull-timer", true);
-		timer.schedule(this, period, period);
+	public void start(final ChangeSource changeSource) {
+		synchronized (sourceLock) {
+			if (this.changeSource != null) {
+				this.changeSource.stop();
+			}
+			this.changeSource = changeSource;
+			changeSource.start(this::pull);
+		}
+	}
+
+	public void setForeground(final boolean foreground) {
+		final ChangeSource changeSource = this.changeSource;
+		if (changeSource != null) {
+			changeSource.setForeground(foreground);
+		}
+	}
+
+	public void pullNow() {
+		pull();
 	}
 
-	@Override
-	public void run() {
+	private void pull() {
+		// at most one pull in flight, the next one is scheduled when it completes
+		if (!pulling.compareAndSet(false, true)) {
+			pullRequested = true;
+			return;
+		}
 		ThreadPool.getDefault().submit(PoolPriority.MIN, "pull updates", () -> {
+			boolean active = false;
 			try {
 				final List<History> updates = getUpdates();
 				disconnected.set(false);
+				if (resyncRequired.getAndSet(false)) {
+					active = true;
+					resyncCallBacks.forEach(c -> c.run());
+					updateLabelCallBacks.forEach(c -> c.run());
+				}
 				if (updates != null) {
+					active = true;
 					invokeCallbacks(updates);
 				}
 			} catch (final HistoryException e) {
@@ -94,20 +139,63 @@ public class HistoryService extends TimerTask {
 				} else {
 					LOGGER.error("pull updates", e);
 				}
+			} finally {
+				final boolean requested = pullRequested;
+				pullRequested = false;
+				pulling.set(false);
+				if (requested) {
+					pull();
+				} else {
+					pulled(active);
+				}
 			}
 		});
 	}
 
-	public List<History> getUpdates() throws HistoryException {
+	private void pulled(final boolean active) {
+		final ChangeSource changeSource = this.changeSource;
+		if (changeSource != null) {
+			changeSource.pulled(active);
+		}
+	}
+
+	public synchronized List<History> getUpdates() throws HistoryException {
 		final long start = System.currentTimeMillis();
 		try {
 			if (historyId == null) {
-				historyId = gmail.users().getProfile(user).execute().getHistoryId();
+				historyId = retryExecutor.execute(gmail.users().getProfile(user)).getHistoryId();
 				LOGGER.info("new historyId: {}", historyId);
 				return null;
 			}
 
-			final ListHistoryResponse response = gmail.users().history().list(user).setStartHistoryId(historyId).execute();
+			final List<History> history = new ArrayList<>();
+			ListHistoryResponse response;
+			String pageToken = null;
+			try {
+				do {
+					response = retryExecutor.execute(gmail
+							.users()
+							.history()
+							.list(user)
+							.setStartHistoryId(historyId)
+							.setHistoryTypes(HISTORY_TYPES)
+							.setPageToken(pageToken));
+					if (response.getHistory() != null) {
+						history.addAll(response.getHistory());
+					}
+					pageToken = response.getNextPageToken();
+				} while (pageToken != null);
+			} catch (final GoogleJsonResponseException e) {
+				if (e.getStatusCode() != HISTORY_EXPIRED) {
+					throw e;
+				}
+				// records are gone, restart from now and let the caches reconcile what was missed
+				LOGGER.warn("history expired since historyId: {}", historyId);
+				historyId = retryExecutor.execute(gmail.users().getProfile(user)).getHistoryId();
+				saveHistoryId();
+				resyncRequired.set(true);
+				return null;
+			}
 			disconnected.set(false);
 
 			final BigInteger previous = historyId;
@@ -116,14 +204,10 @@ public class HistoryService extends TimerTask {
 				return null;
 			}
 
-			LOGGER.info("updated historyId: {}", historyId);
-			if (response.getHistory() == null) {
-				return new ArrayList<>();
-			} else {
-				return response.getHistory();
-			}
+			LOGGER.info("updated historyId: {} ({} records)", historyId, history.size());
+			return history;
 		} catch (final Exception e) {
-			historyId = null;
+			// keep historyId, a transient error must not skip records
 			throw new HistoryException("get history id", e);
 		} finally {
 			LOGGER.debug("got history id: {} ({}ms)", historyId, System.currentTimeMillis()-start);
@@ -136,6 +220,8 @@ public class HistoryService extends TimerTask {
 			return;
 		}
 
+		historyCallBacks.forEach(c -> c.call(updates));
+
 		final Set<Message> updatedMessages = new LinkedHashSet<>();
 		final Set<Message> addedMessages = new LinkedHashSet<>();
 		for(final History h: updates) {
@@ -164,6 +250,10 @@ public class HistoryService extends TimerTask {
 		}
 	}
 
+	public void addOnHistory(final VoidCallback<List<History>> callback) {
+		historyCallBacks.add(callback);
+	}
+
 	public void addOnUpdateMessage(final VoidCallback<Set<Message>> callback) {
 		updateMessageCallBacks.add(callback);
 	}
@@ -176,17 +266,39 @@ public class HistoryService extends TimerTask {
 		updateLabelCallBacks.add(callback);
 	}
 
+	public void addOnResync(final Runnable callback) {
+		resyncCallBacks.add(callback);
+	}
+
 	public void clearCache() {
 		historyId = null;
-		new SerializedFile<BigInteger>(FILE_PREFIX + user).clear();
+		saveHistoryId();
 		updateLabelCallBacks.forEach(c -> c.run());
 	}
 
+	private void saveHistoryId() {
+		final BigInteger id = historyId;
+		try {
+			if (id == null) {
+				new SerializedFile<BigInteger>(historyIdFilename).clear();
+			} else {
+				new SerializedFile<BigInteger>(historyIdFilename).save(id);
+			}
+		} catch (final IOException e) {
+			LOGGER.error("save history id", e);
+		}
+	}
+
 	public ReadOnlyBooleanProperty disconnected() {
 		return disconnected.getReadOnlyProperty();
 	}
 
 	public void stop() {
-		timer.cancel();
+		synchronized (sourceLock) {
+			if (changeSource != null) {
+				changeSource.stop();
+				changeSource = null;
+			}
+		}
 	}
 }
@@ -2,82 +2,139 @@ package net.anfoya.mail.gmail.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.History;
 import com.google.api.services.gmail.model.Label;
+import com.google.api.services.gmail.model.Message;
 
-import net.anfoya.java.io.SerializedFile;
 import net.anfoya.java.util.system.ShutdownHook;
 import net.anfoya.mail.gmail.cache.CacheData;
 import net.anfoya.mail.gmail.cache.CacheException;
+import net.anfoya.mail.gmail.cache.CacheStore;
 import net.anfoya.mail.gmail.model.GmailTag;
+import net.anfoya.mail.gmail.service.BatchExecutor.BatchResult;
 
 public class LabelService {
 	private static final Logger LOGGER = LoggerFactory.getLogger(LabelService.class);
-	private static final String FILE_PREFIX = System.getProperty("java.io.tmpdir") + File.separatorChar + "fsm-cache-id-labels-";
 
-	private final Map<String, Label> idLabels;
+	private final Map<String, Label> idStats;
+	private final CacheStore<Label> labelStore;
+	private final AtomicLong treeVersion;
 	private final Gmail gmail;
+	private final RetryExecutor retryExecutor;
+	private final BatchExecutor batchExecutor;
 	private final String user;
 
-	public LabelService(final Gmail gmail, final String user) {
+	// immutable snapshot of all labels, writes publish a new one
+	private volatile LabelTree tree;
+	// version of the tree the store holds
+	private final long storedVersion;
+
+	public LabelService(final Gmail gmail, final RetryExecutor retryExecutor, final BatchExecutor batchExecutor, final String user, final File cacheDir) {
 		this.gmail = gmail;
+		this.retryExecutor = retryExecutor;
+		this.batchExecutor = batchExecutor;
 		this.user = user;
 
-		idLabels = new ConcurrentHashMap<>();
+		idStats = new ConcurrentHashMap<>();
+		treeVersion = new AtomicLong();
+		labelStore = new CacheStore<>(new File(cacheDir, "labels"), Label.class);
+		final List<Label> labels = new ArrayList<>();
 		try {
-			for(final Entry<String, CacheData<Label>> entry: new SerializedFile<Map<String, CacheData<Label>>>(FILE_PREFIX + user).load().entrySet()) {
-				idLabels.put(entry.getKey(), entry.getValue().getData());
+			for(final String id: labelStore.keySet()) {
+				final CacheData<Label> data = labelStore.get(id);
+				if (data != null) {
+					labels.add(data.getData());
+				}
 			}
-		} catch (ClassNotFoundException | IOException | CacheException e) {
-			idLabels.clear();
+		} catch (final CacheException e) {
+			labels.clear();
 		}
+		tree = labels.isEmpty()? null: new LabelTree(labels, treeVersion.incrementAndGet());
+		storedVersion = tree == null? 0: tree.getVersion();
 
 		new ShutdownHook(() -> {
-			LOGGER.info("saving...");
-			new SerializedFile<Map<String, CacheData<Label>>>(FILE_PREFIX + user)
-				.save(idLabels.entrySet().stream().collect(Collectors.toMap(
-					e -> e.getKey(),
-					e -> new CacheData<>(e.getValue()))));
+			final LabelTree tree = this.tree;
+			if (tree == null) {
+				labelStore.clear();
+			} else if (tree.getVersion() != storedVersion) {
+				LOGGER.info("saving...");
+				tree.getLabels().forEach(l -> labelStore.put(l.getId(), new CacheData<>(l)));
+				labelStore.keySet()
+					.stream()
+					.filter(id -> tree.get(id) == null)
+					.forEach(id -> labelStore.remove(id));
+			}
+			labelStore.close();
 		});
 	}
 
-	public Set<Label> getAll() throws LabelException {
-		if (idLabels.isEmpty()) {
+	public List<Label> getAll() throws LabelException {
+		return getTree().getLabels();
+	}
+
+	public LabelTree getTree() throws LabelException {
+		final LabelTree tree = this.tree;
+		return tree != null? tree: load();
+	}
+
+	private synchronized LabelTree load() throws LabelException {
+		if (tree == null) {
 			try {
-				for(final Label l: gmail.users().labels().list(user).execute().getLabels()) {
-					idLabels.put(l.getId(), l);
-				}
+				final List<Label> labels = retryExecutor.execute(gmail.users().labels().list(user)).getLabels();
+				tree = new LabelTree(labels, treeVersion.incrementAndGet());
 			} catch (final IOException e) {
 				throw new LabelException("get labels", e);
 			}
-			LOGGER.debug("all labels: {}", idLabels.values());
+			LOGGER.debug("all labels: {}", tree.getLabels());
 		}
-		return new HashSet<>(idLabels.values());
+		return tree;
+	}
+
+	private synchronized LabelTree publish(final Consumer<Map<String, Label>> change) throws LabelException {
+		// copy on write, readers keep the snapshot they hold
+		final Map<String, Label> idLabels = new LinkedHashMap<>();
+		getTree().getLabels().forEach(l -> idLabels.put(l.getId(), l));
+		change.accept(idLabels);
+		tree = new LabelTree(idLabels.values(), treeVersion.incrementAndGet());
+		return tree;
 	}
 
 	public Label get(final String id) throws LabelException {
-		getAll();
-		return idLabels.get(id);
+		return getTree().get(id);
+	}
+
+	public Label getByPath(final String path) throws LabelException {
+		final LabelTree.Node node = getTree().getNode(path);
+		return node == null? null: node.getLabel();
 	}
 
 	public Label rename(final String labelId, final String name) throws LabelException {
 		try {
-			final Label label = get(labelId);
+			final Label label = copy(labelId);
+			if (label == null) {
+				throw new LabelException("rename (id: " + labelId + ") to \"" + name + "\", label not found", null);
+			}
 			label.setName(name);
 			label.setMessageListVisibility("show");
 			label.setLabelListVisibility("labelShow");
 			label.setType("user");
-			gmail.users().labels().update(user, labelId, label).execute();
+			retryExecutor.execute(gmail.users().labels().update(user, labelId, label));
+			publish(idLabels -> idLabels.put(labelId, label));
 			return label;
 		} catch (final IOException e) {
 			throw new LabelException("rename (id: " + labelId + ") to \"" + name + "\"", e);
@@ -91,9 +148,9 @@ public class LabelService {
 			label.setLabelListVisibility("labelShow");
 			label.setType("user");
 			label.setName(name);
-			final Label newLabel = gmail.users().labels().create(user, label).execute();
+			final Label newLabel = retryExecutor.execute(gmail.users().labels().create(user, label));
 			label.setId(newLabel.getId());
-			idLabels.put(label.getId(), label);
+			publish(idLabels -> idLabels.put(label.getId(), label));
 			return label;
 		} catch (final IOException e) {
 			throw new LabelException("add \"" + name + "\"", e);
@@ -102,47 +159,64 @@ public class LabelService {
 
 	public void remove(final String labelId) throws LabelException {
 		try {
-			idLabels.remove(labelId);
-			gmail.users().labels().delete(user, labelId).execute();
+			retryExecutor.execute(gmail.users().labels().delete(user, labelId));
+			publish(idLabels -> idLabels.remove(labelId));
 		} catch (final IOException e) {
 			throw new LabelException("remove \"" + labelId + "\"", e);
 		}
 	}
 
-	public void hide(final String labelId) throws LabelException {
-		if (!idLabels.containsKey(labelId)) {
-			return;
-		}
-
+	public void remove(final Set<String> labelIds) throws LabelException {
 		try {
-			final Label label = idLabels.get(labelId);
-			label.setLabelListVisibility("labelHide");
-			if (!"system".equals(label.getType())) {
-				label.setMessageListVisibility("hide");
-			}
-			gmail.users().labels().update(user, labelId, label).execute();
-		} catch (final IOException e) {
-			throw new LabelException("hide \"" + labelId + "\"", e);
+			final BatchResult<Void> result = batchExecutor.execute(labelIds, id ->
+				gmail.users().labels().delete(user, id));
+			result.getFailures().forEach((id, e) -> LOGGER.error("remove label {}: {}", id, e.getMessage()));
+
+			// labels which failed to delete are kept, unless they were already gone
+			final Set<String> removedIds = new HashSet<>(labelIds);
+			result.getFailures().forEach((id, e) -> {
+				if (e.getCode() != 404) {
+					removedIds.remove(id);
+				}
+			});
+			publish(idLabels -> idLabels.keySet().removeAll(removedIds));
+		} catch (final InterruptedException e) {
+			throw new LabelException("remove " + labelIds, e);
 		}
 	}
 
+	public void hide(final String labelId) throws LabelException {
+		setVisibility(labelId, "labelHide", "hide");
+	}
+
 	public void show(final String labelId) throws LabelException {
-		if (!idLabels.containsKey(labelId)) {
+		setVisibility(labelId, "labelShow", "show");
+	}
+
+	private void setVisibility(final String labelId, final String labelListVisibility, final String messageListVisibility) throws LabelException {
+		final Label label = copy(labelId);
+		if (label == null) {
 			return;
 		}
 
 		try {
-			final Label label = idLabels.get(labelId);
-			label.setLabelListVisibility("labelShow");
+			label.setLabelListVisibility(labelListVisibility);
 			if (!"system".equals(label.getType())) {
-				label.setMessageListVisibility("show");
+				label.setMessageListVisibility(messageListVisibility);
 			}
-			gmail.users().labels().update(user, labelId, label).execute();
+			retryExecutor.execute(gmail.users().labels().update(user, labelId, label));
+			publish(idLabels -> idLabels.put(labelId, label));
 		} catch (final IOException e) {
-			throw new LabelException("show \"" + labelId + "\"", e);
+			throw new LabelException(messageListVisibility + " \"" + labelId + "\"", e);
 		}
 	}
 
+	private Label copy(final String labelId) throws LabelException {
+		// labels of a snapshot are never modified
+		final Label label = getTree().get(labelId);
+		return label == null? null: label.clone();
+	}
+
 	public Label find(final String name) throws LabelException {
 		for(final Label l: getAll()) {
 			if (l.getName().equalsIgnoreCase(name)) {
@@ -152,28 +226,88 @@ public class LabelService {
 		return null;
 	}
 
-	public void clearCache() {
-		idLabels.clear();
-		new SerializedFile<Map<String, CacheData<Label>>>(FILE_PREFIX + user).clear();
+	public Label getStats(final String id) throws LabelException {
+		Label stats = idStats.get(id);
+		if (stats == null) {
+			try {
+				stats = retryExecutor.execute(gmail.users().labels().get(user, id)
+						.setFields("id,threadsTotal,threadsUnread"));
+			} catch (final IOException e) {
+				throw new LabelException("get stats for label " + id, e);
+			}
+			idStats.put(id, stats);
+		}
+		return stats;
+	}
+
+	public void clearStats(final Collection<String> ids) {
+		ids.forEach(id -> idStats.remove(id));
+	}
+
+	public void clearStats() {
+		idStats.clear();
+	}
+
+	public void update(final List<History> history) {
+		final Set<String> ids = new HashSet<>();
+		for(final History h: history) {
+			if (h.getLabelsAdded() != null) {
+				h.getLabelsAdded().forEach(l -> ids.addAll(l.getLabelIds()));
+			}
+			if (h.getLabelsRemoved() != null) {
+				h.getLabelsRemoved().forEach(l -> ids.addAll(l.getLabelIds()));
+			}
+			if (h.getMessagesAdded() != null) {
+				h.getMessagesAdded()
+					.stream()
+					.filter(m -> m.getMessage().getLabelIds() != null)
+					.forEach(m -> ids.addAll(m.getMessage().getLabelIds()));
+			}
+			if (h.getMessagesDeleted() != null) {
+				h.getMessagesDeleted()
+					.stream()
+					.filter(m -> m.getMessage().getLabelIds() != null)
+					.forEach(m -> ids.addAll(m.getMessage().getLabelIds()));
+			}
+		}
+		// unread counts of other labels may change with UNREAD
+		if (ids.contains(GmailTag.UNREAD.getId())) {
+			clearStats();
+		} else {
+			clearStats(ids);
+		}
+	}
+
+	public synchronized void clearCache() {
+		tree = null;
+		idStats.clear();
+		labelStore.clear();
 	}
 
 	public void clean(com.google.api.services.gmail.model.Thread t) {
-		// clean labels
-		t.getMessages()
-			.stream()
-			.filter(m -> m.getLabelIds() != null)
-			.forEach(m -> {
-				m.setLabelIds(m.getLabelIds()
-						.stream()
-						.filter(id -> {
-							try {
-								return !GmailTag.isHidden(get(id));
-							} catch (final Exception e) {
-								LOGGER.warn("retrieving tag id {}: {}", id, e.getMessage());
-								return false;
-							}
-						})
-						.collect(Collectors.toList()));
-			});
+		final LabelTree tree;
+		try {
+			tree = getTree();
+		} catch (final LabelException e) {
+			LOGGER.warn("retrieving tags: {}", e.getMessage());
+			return;
+		}
+
+		// clean labels, unknown and hidden ones are dropped, others use the shared id instance
+		final Set<String> hiddenIds = tree.getHiddenIds();
+		for(final Message m: t.getMessages()) {
+			final List<String> ids = m.getLabelIds();
+			if (ids == null) {
+				continue;
+			}
+			final List<String> cleanIds = new ArrayList<>(ids.size());
+			for(final String id: ids) {
+				final Label label = tree.get(id);
+				if (label != null && !hiddenIds.contains(id)) {
+					cleanIds.add(label.getId());
+				}
+			}
+			m.setLabelIds(cleanIds);
+		}
 	}
 }
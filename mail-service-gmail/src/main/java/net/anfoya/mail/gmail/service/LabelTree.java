@@ -0,0 +1,153 @@
+package net.anfoya.mail.gmail.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.api.services.gmail.model.Label;
+
+import net.anfoya.mail.gmail.model.GmailTag;
+
+/**
+ * Immutable index of labels by id, by path ("a/b/c") and by lower-cased name, built once per label change.
+ */
+public class LabelTree {
+	private static final String SEPARATOR = "/";
+
+	public static class Node {
+		private final String path;
+		private final Node parent;
+		private final Map<String, Node> children;
+		private Label label;
+
+		private Node(final String path, final Node parent) {
+			this.path = path;
+			this.parent = parent;
+			children = new LinkedHashMap<>();
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public Node getParent() {
+			return parent;
+		}
+
+		public Collection<Node> getChildren() {
+			return Collections.unmodifiableCollection(children.values());
+		}
+
+		public boolean hasChildren() {
+			return !children.isEmpty();
+		}
+
+		public Label getLabel() {
+			return label;
+		}
+
+		public boolean isHidden() {
+			return label != null && GmailTag.isHidden(label);
+		}
+
+		public boolean isSystem() {
+			return label != null && GmailTag.isSystem(label);
+		}
+	}
+
+	private final long version;
+	private final List<Label> labels;
+	private final Map<String, Label> idLabels;
+	private final Map<String, Node> pathNodes;
+	private final Map<String, List<Label>> nameLabels;
+	private final Set<String> hiddenIds;
+	private final Node root;
+
+	public LabelTree(final Collection<Label> labels, final long version) {
+		this.version = version;
+		this.labels = Collections.unmodifiableList(new ArrayList<>(labels));
+
+		idLabels = new HashMap<>();
+		pathNodes = new HashMap<>();
+		nameLabels = new HashMap<>();
+		root = new Node("", null);
+
+		final Set<String> hiddenIds = new HashSet<>();
+		for(final Label label: labels) {
+			// ids are shared by every message of every cached thread, labels of a previous tree are already interned
+			final String id = label.getId().intern();
+			if (id != label.getId()) {
+				label.setId(id);
+			}
+			idLabels.put(label.getId(), label);
+			if (GmailTag.isHidden(label)) {
+				hiddenIds.add(label.getId());
+			}
+			getOrCreate(label.getName()).label = label;
+			nameLabels
+				.computeIfAbsent(GmailTag.getName(label).toLowerCase(), n -> new ArrayList<>())
+				.add(label);
+		}
+		this.hiddenIds = Collections.unmodifiableSet(hiddenIds);
+	}
+
+	private Node getOrCreate(final String path) {
+		Node node = pathNodes.get(path);
+		if (node == null) {
+			final int pos = path.lastIndexOf(SEPARATOR);
+			final Node parent = pos > 0? getOrCreate(path.substring(0, pos)): root;
+			node = new Node(path, parent);
+			parent.children.put(path, node);
+			pathNodes.put(path, node);
+		}
+		return node;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public List<Label> getLabels() {
+		return labels;
+	}
+
+	public Label get(final String id) {
+		return idLabels.get(id);
+	}
+
+	public Set<String> getHiddenIds() {
+		return hiddenIds;
+	}
+
+	public Node getNode(final String path) {
+		return pathNodes.get(path);
+	}
+
+	public Collection<Node> getRoots() {
+		return root.getChildren();
+	}
+
+	public boolean hasChildren(final Label label) {
+		final Node node = pathNodes.get(label.getName());
+		return node != null && node.hasChildren();
+	}
+
+	public List<Label> findByName(final Collection<String> lowerCasePatterns) {
+		final List<Label> found = new ArrayList<>();
+		nameLabels.forEach((name, labels) -> {
+			for(final String p: lowerCasePatterns) {
+				if (name.contains(p)) {
+					found.addAll(labels);
+					break;
+				}
+			}
+		});
+		return found;
+	}
+}
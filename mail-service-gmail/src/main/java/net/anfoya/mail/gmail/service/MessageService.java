@@ -1,46 +1,152 @@
 package net.anfoya.mail.gmail.service;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Base64;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+import javax.mail.util.ByteArrayDataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.Draft;
+import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.ListDraftsResponse;
 import com.google.api.services.gmail.model.ListMessagesResponse;
 import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.google.api.services.gmail.model.MessagePartHeader;
 
-import net.anfoya.java.cache.FileSerieSerializedMap;
+import net.anfoya.java.util.system.ShutdownHook;
 import net.anfoya.mail.gmail.cache.CacheData;
+import net.anfoya.mail.gmail.cache.CacheStore;
+import net.anfoya.mail.gmail.cache.SegmentStore;
+import net.anfoya.mail.gmail.model.GmailTag;
+import net.anfoya.mail.gmail.service.BatchExecutor.BatchResult;
 
 public class MessageService {
 	private static final Logger LOGGER = LoggerFactory.getLogger(MessageService.class);
+	private static final Session SESSION = Session.getDefaultInstance(new Properties(), null);
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	// Gmail pads its base64url data
+	private static final Base64Variant BASE64_URL = new Base64Variant(Base64Variants.MODIFIED_FOR_URL, "base64url", true, '=', Integer.MAX_VALUE);
 
-	private static final String FILE_PREFIX = System.getProperty("java.io.tmpdir") + File.separatorChar + "fsm-cache-id-messages-";
+	private static class RawMessage {
+		private final Message message;
+		private final byte[] raw;
+
+		private RawMessage(final Message message, final byte[] raw) {
+			this.message = message;
+			this.raw = raw;
+		}
+	}
+
+	// message in structured form, deflated with its payload, or without content when raw RFC 822 bytes are stored deflated on their own
+	private final CacheStore<Message> idMessages;
+	private final SegmentStore idRaws;
+	private final File attachmentDir;
+
+	// message id -> draft id, kept up to date from our own calls and from history
+	private final Map<String, String> messageDraftIds;
+	private final SegmentStore draftIdStore;
+	private volatile boolean draftsListed;
 
-	private final Map<String, CacheData<Message>> idMessages;
 	private final Gmail gmail;
+	private final RetryExecutor retryExecutor;
+	private final BatchExecutor batchExecutor;
 	private final String user;
 
-	public MessageService(final Gmail gmail, final String user) {
+	public MessageService(final Gmail gmail, final RetryExecutor retryExecutor, final BatchExecutor batchExecutor, final String user, final File cacheDir) {
 		this.gmail = gmail;
+		this.retryExecutor = retryExecutor;
+		this.batchExecutor = batchExecutor;
 		this.user = user;
 
-		idMessages = new FileSerieSerializedMap<>(FILE_PREFIX + user, 50);
+		idMessages = new CacheStore<>(new File(cacheDir, "messages"), Message.class);
+		idRaws = CacheStore.open(new File(cacheDir, "raw-messages"));
+		attachmentDir = new File(cacheDir, "attachments");
+
+		messageDraftIds = new ConcurrentHashMap<>();
+		draftIdStore = CacheStore.open(new File(cacheDir, "draft-ids"));
+		if (draftIdStore != null) {
+			for(final String messageId: draftIdStore.keySet()) {
+				try {
+					final byte[] draftId = draftIdStore.get(messageId);
+					if (draftId != null) {
+						messageDraftIds.put(messageId, new String(draftId, StandardCharsets.UTF_8));
+					}
+				} catch (final IOException e) {
+					LOGGER.error("read draft id for message {}", messageId, e);
+				}
+			}
+		}
+
+		new ShutdownHook(() -> {
+			idMessages.close();
+			if (idRaws != null) {
+				idRaws.close();
+			}
+			if (draftIdStore != null) {
+				draftIdStore.close();
+			}
+		});
 	}
 
 	public Message getMessage(final String id) throws MessageException {
+		final Message message = getSummary(id).clone();
+		try (final InputStream raw = getRaw(id);
+				final ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			final byte[] buffer = new byte[8192];
+			int n;
+			while ((n=raw.read(buffer)) != -1) {
+				bos.write(buffer, 0, n);
+			}
+			message.setRaw(Base64.getUrlEncoder().encodeToString(bos.toByteArray()));
+		} catch (final IOException e) {
+			throw new MessageException("read message " + id, e);
+		}
+
+		return message;
+	}
+
+	public boolean isCached(final String id) {
+		return idMessages.containsKey(id);
+	}
+
+	public Message getSummary(final String id) throws MessageException {
 		Message message = null;
 		if (idMessages.containsKey(id)) {
 			try {
@@ -50,41 +156,288 @@ public class MessageService {
 			}
 		}
 		if (message == null) {
+			message = fetch(id);
+		}
+
+		return message;
+	}
+
+	public MimeMessage getMimeMessage(final String id) throws MessageException {
+		if (idRaws == null || !idRaws.containsKey(id)) {
+			final Message message = getSummary(id);
+			if (message.getPayload() != null) {
+				return toMimeMessage(message);
+			}
+		}
+		try (final InputStream raw = getRaw(id)) {
+			return new MimeMessage(SESSION, raw);
+		} catch (final IOException | MessagingException e) {
+			throw new MessageException("parse message " + id, e);
+		}
+	}
+
+	public int getWeight(final String id, final Message message) {
+		// bytes held by the mime message, attachments of a payload are loaded on demand
+		if (idRaws != null && idRaws.containsKey(id) || message.getPayload() == null) {
+			return message.getSizeEstimate() == null? 0: message.getSizeEstimate();
+		}
+		return getWeight(message.getPayload());
+	}
+
+	private static int getWeight(final MessagePart part) {
+		int weight = 0;
+		if (part.getHeaders() != null) {
+			for(final MessagePartHeader h: part.getHeaders()) {
+				weight += h.getName().length() + (h.getValue() == null? 0: h.getValue().length());
+			}
+		}
+		final MessagePartBody body = part.getBody();
+		if (body != null && body.getAttachmentId() == null && body.getData() != null) {
+			// base64 encoded
+			weight += body.getData().length() / 4 * 3;
+		}
+		if (part.getParts() != null) {
+			for(final MessagePart p: part.getParts()) {
+				weight += getWeight(p);
+			}
+		}
+		return weight;
+	}
+
+	private InputStream getRaw(final String id) throws MessageException {
+		byte[] compressed = null;
+		if (idRaws != null && idMessages.containsKey(id)) {
 			try {
-				message = gmail
-							.users()
-							.messages()
-							.get(user, id)
-							.setFormat("raw")
-							.execute();
-				idMessages.put(id, new CacheData<>(message));
+				compressed = idRaws.get(id);
 			} catch (final IOException e) {
-				throw new MessageException("get message " + id, e);
+				LOGGER.error("read raw message {}", id, e);
 			}
 		}
+		if (compressed != null) {
+			return new InflaterInputStream(new ByteArrayInputStream(compressed));
+		}
+
+		return new ByteArrayInputStream(fetchRaw(id).raw);
+	}
+
+	private Message fetch(final String id) throws MessageException {
+		final Message message;
+		try {
+			// attachment bodies are left out, see getAttachment()
+			message = retryExecutor.execute(gmail
+						.users()
+						.messages()
+						.get(user, id)
+						.setFormat("full"));
+		} catch (final IOException e) {
+			throw new MessageException("get message " + id, e);
+		}
+		idMessages.put(id, new CacheData<>(message));
 
 		return message;
 	}
 
+	private RawMessage fetchRaw(final String id) throws MessageException {
+		final Message message;
+		try {
+			message = retryExecutor.execute(gmail
+						.users()
+						.messages()
+						.get(user, id)
+						.setFormat("raw"));
+		} catch (final IOException e) {
+			throw new MessageException("get message " + id, e);
+		}
+
+		return store(message);
+	}
+
+	public void fetch(final Set<String> ids) throws MessageException {
+		final Set<String> missingIds = ids
+				.stream()
+				.filter(id -> !idMessages.containsKey(id))
+				.collect(Collectors.toSet());
+		if (missingIds.isEmpty()) {
+			return;
+		}
+		try {
+			final BatchResult<Message> result = batchExecutor.execute(missingIds, id ->
+				gmail.users().messages().get(user, id).setFormat("full"));
+			result.getResults().forEach(m -> idMessages.put(m.getId(), new CacheData<>(m)));
+			result.getFailures().forEach((id, e) -> LOGGER.error("get message {}: {}", id, e.getMessage()));
+		} catch (final InterruptedException e) {
+			throw new MessageException("get messages " + missingIds, e);
+		}
+	}
+
+	public File getAttachment(final String messageId, final String partId, final String attachmentId) throws MessageException {
+		// attachment ids change from one fetch to the other, part ids don't
+		final File file = new File(attachmentDir, messageId + "-" + partId);
+		if (file.exists()) {
+			return file;
+		}
+
+		File tmp = null;
+		try {
+			attachmentDir.mkdirs();
+			tmp = File.createTempFile(file.getName(), ".tmp", attachmentDir);
+			final HttpResponse response = retryExecutor.executeUnparsed(gmail
+					.users()
+					.messages()
+					.attachments()
+					.get(user, messageId, attachmentId));
+			try (final InputStream in = response.getContent();
+					final OutputStream out = Files.newOutputStream(tmp.toPath())) {
+				writeData(in, out);
+			} finally {
+				response.disconnect();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (final IOException e) {
+			throw new MessageException("get attachment " + partId + " of message " + messageId, e);
+		} finally {
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+
+		return file;
+	}
+
+	private static void writeData(final InputStream json, final OutputStream out) throws IOException {
+		// body is decoded while it is read, never held as a string
+		try (final JsonParser parser = JSON_FACTORY.createParser(json)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("unexpected attachment response");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String name = parser.getCurrentName();
+				parser.nextToken();
+				if ("data".equals(name)) {
+					parser.readBinaryValue(BASE64_URL, out);
+					return;
+				}
+				parser.skipChildren();
+			}
+			throw new IOException("no data in attachment response");
+		}
+	}
+
+	private MimeMessage toMimeMessage(final Message message) throws MessageException {
+		try {
+			final MimeMessage mimeMessage = new MimeMessage(SESSION);
+			setPart(mimeMessage, message.getId(), message.getPayload());
+			return mimeMessage;
+		} catch (final MessagingException e) {
+			throw new MessageException("build message " + message.getId(), e);
+		}
+	}
+
+	private void setPart(final MimePart mimePart, final String messageId, final MessagePart part) throws MessagingException {
+		final String mimeType = part.getMimeType();
+		if (mimeType.startsWith("multipart/")) {
+			final MimeMultipart multipart = new MimeMultipart(mimeType.substring("multipart/".length()));
+			if (part.getParts() != null) {
+				for(final MessagePart p: part.getParts()) {
+					final MimeBodyPart bodyPart = new MimeBodyPart();
+					setPart(bodyPart, messageId, p);
+					multipart.addBodyPart(bodyPart);
+				}
+			}
+			// boundary is the new multipart's, not the one of the original header
+			mimePart.setContent(multipart);
+			mimePart.setHeader("Content-Type", multipart.getContentType());
+		} else {
+			String contentType = null;
+			if (part.getHeaders() != null) {
+				for(final MessagePartHeader h: part.getHeaders()) {
+					if ("Content-Type".equalsIgnoreCase(h.getName())) {
+						contentType = h.getValue();
+					}
+				}
+			}
+			if (contentType == null) {
+				contentType = mimeType;
+			}
+
+			final MessagePartBody body = part.getBody();
+			final DataSource dataSource;
+			if (body != null && body.getAttachmentId() != null) {
+				dataSource = new AttachmentDataSource(this, messageId, part.getPartId(), body.getAttachmentId(), contentType, part.getFilename());
+			} else {
+				final byte[] data = body == null || body.getData() == null? new byte[0]: Base64.getUrlDecoder().decode(body.getData());
+				final ByteArrayDataSource byteSource = new ByteArrayDataSource(data, contentType);
+				byteSource.setName(part.getFilename());
+				dataSource = byteSource;
+			}
+			mimePart.setDataHandler(new DataHandler(dataSource));
+		}
+
+		// original headers, body is already decoded
+		if (part.getHeaders() != null) {
+			for(final MessagePartHeader h: part.getHeaders()) {
+				if (!"Content-Transfer-Encoding".equalsIgnoreCase(h.getName())
+						&& !(mimeType.startsWith("multipart/") && "Content-Type".equalsIgnoreCase(h.getName()))) {
+					mimePart.addHeader(h.getName(), h.getValue());
+				}
+			}
+		}
+	}
+
+	private RawMessage store(final Message message) {
+		final String id = message.getId();
+
+		// decoded once from base64, never kept as a string
+		final byte[] raw = Base64.getUrlDecoder().decode(message.getRaw());
+		message.setRaw(null);
+		if (idRaws != null) {
+			try (final ByteArrayOutputStream bos = new ByteArrayOutputStream(raw.length / 2)) {
+				final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+				try (final DeflaterOutputStream out = new DeflaterOutputStream(bos, deflater)) {
+					out.write(raw);
+				} finally {
+					deflater.end();
+				}
+				idRaws.put(id, bos.toByteArray());
+			} catch (final IOException e) {
+				LOGGER.error("write raw message {}", id, e);
+			}
+		}
+		idMessages.put(id, new CacheData<>(message));
+
+		return new RawMessage(message, raw);
+	}
+
 	public void removeMessage(final String id) throws MessageException {
 		try {
-			gmail
+			retryExecutor.execute(gmail
 				.users()
 				.messages()
-				.trash(user, id)
-				.execute();
+				.trash(user, id), true);
 		} catch (final IOException e) {
 			throw new MessageException("delete message " + id, e);
 		}
 	}
 
+	public void removeMessages(final Set<String> ids) throws MessageException {
+		try {
+			final BatchResult<Message> result = batchExecutor.execute(ids, id ->
+				gmail.users().messages().trash(user, id));
+			result.getFailures().forEach((id, e) -> LOGGER.error("delete message {}: {}", id, e.getMessage()));
+		} catch (final InterruptedException e) {
+			throw new MessageException("delete messages " + ids, e);
+		}
+	}
+
 	public void send(final String id, final String raw) throws MessageException {
 		try {
 			final Message message = new Message();
 			message.setRaw(raw);
-			final Draft draft = getDraft(id);
+			final Draft draft = new Draft();
+			draft.setId(id);
 			draft.setMessage(message);
-			gmail.users().drafts().send(user, draft).execute();
+			retryExecutor.execute(gmail.users().drafts().send(user, draft));
+			unindexDraft(id);
 		} catch (final IOException e) {
 			throw new MessageException("send draft " + id, e);
 		}
@@ -94,9 +447,11 @@ public class MessageService {
 		try {
 			final Message message = new Message();
 			message.setRaw(raw);
-			final Draft draft = getDraft(id);
+			final Draft draft = new Draft();
+			draft.setId(id);
 			draft.setMessage(message);
-			gmail.users().drafts().update(user, id, draft).execute();
+			// each update creates a new message for the draft
+			indexDraft(retryExecutor.execute(gmail.users().drafts().update(user, id, draft)));
 		} catch (final IOException e) {
 			throw new MessageException("save draft " + id, e);
 		}
@@ -112,13 +467,12 @@ public class MessageService {
 		    message.setRaw(Base64.getUrlEncoder().encodeToString(baos.toByteArray()));
 		    final Draft draft = new Draft();
 		    draft.setMessage(message);
-		    final String id = gmail
+		    final Draft created = retryExecutor.execute(gmail
 		    		.users()
 		    		.drafts()
-		    		.create(user, draft)
-		    		.execute()
-		    		.getId();
-		    draft.setId(id);
+		    		.create(user, draft));
+		    indexDraft(created);
+		    draft.setId(created.getId());
 		    return draft;
 		} catch (IOException | MessagingException e) {
 			throw new MessageException("create draft", e);
@@ -127,40 +481,126 @@ public class MessageService {
 
 	public void removeDraft(final String id) throws MessageException {
 		try {
-			gmail.users().drafts().delete(user, id).execute();
+			retryExecutor.execute(gmail.users().drafts().delete(user, id));
+			unindexDraft(id);
 		} catch (final IOException e) {
 			throw new MessageException("delete draft " + id, e);
 		}
 	}
 
 	public Draft getDraftForMessage(final String id) throws MessageException {
+		String draftId = messageDraftIds.get(id);
+		if (draftId == null && !draftsListed) {
+			// unknown message, index may be missing drafts created elsewhere
+			listDrafts();
+			draftId = messageDraftIds.get(id);
+		}
+		return draftId == null? null: getDraft(draftId);
+	}
+
+	public void update(final List<History> history) {
+		for(final History h: history) {
+			if (h.getMessagesDeleted() != null) {
+				h.getMessagesDeleted().forEach(m -> unindexMessage(m.getMessage().getId()));
+			}
+			if (h.getMessagesAdded() != null && h.getMessagesAdded()
+					.stream()
+					.map(m -> m.getMessage())
+					.anyMatch(m -> m.getLabelIds() != null
+							&& m.getLabelIds().contains(GmailTag.DRAFT.getId())
+							&& !messageDraftIds.containsKey(m.getId()))) {
+				// draft from another client, its id is only known from the list
+				draftsListed = false;
+			}
+		}
+	}
+
+	public void resync() {
+		// drafts created or sent elsewhere during a history gap
+		draftsListed = false;
+	}
+
+	private void listDrafts() throws MessageException {
+		final Map<String, String> listed = new ConcurrentHashMap<>();
 		try {
-			Draft draft = null;
-			for(final Draft d: gmail
-					.users()
-					.drafts()
-					.list(user)
-					.execute()
-					.getDrafts()) {
-				if (d.getMessage() != null && d.getMessage().getId().equals(id)) {
-					draft = getDraft(d.getId());
-					break;
+			String pageToken = null;
+			do {
+				final ListDraftsResponse response = retryExecutor.execute(gmail
+						.users()
+						.drafts()
+						.list(user)
+						.setFields("drafts(id,message/id),nextPageToken")
+						.setPageToken(pageToken));
+				if (response.getDrafts() != null) {
+					for(final Draft d: response.getDrafts()) {
+						if (d.getMessage() != null) {
+							listed.put(d.getMessage().getId(), d.getId());
+						}
+					}
 				}
-			}
-			return draft;
+				pageToken = response.getNextPageToken();
+			} while (pageToken != null);
 		} catch (final IOException e) {
-			throw new MessageException("get draft for message " + id, e);
+			throw new MessageException("list drafts", e);
+		}
+
+		for(final String messageId: messageDraftIds.keySet()) {
+			if (!listed.containsKey(messageId)) {
+				unindexMessage(messageId);
+			}
+		}
+		listed.forEach((messageId, draftId) -> {
+			if (!draftId.equals(messageDraftIds.get(messageId))) {
+				indexMessage(messageId, draftId);
+			}
+		});
+		draftsListed = true;
+	}
+
+	private void indexDraft(final Draft draft) {
+		if (draft == null || draft.getMessage() == null || draft.getMessage().getId() == null) {
+			return;
+		}
+		unindexDraft(draft.getId());
+		indexMessage(draft.getMessage().getId(), draft.getId());
+	}
+
+	private void unindexDraft(final String draftId) {
+		for(final Map.Entry<String, String> entry: messageDraftIds.entrySet()) {
+			if (entry.getValue().equals(draftId)) {
+				unindexMessage(entry.getKey());
+			}
+		}
+	}
+
+	private void indexMessage(final String messageId, final String draftId) {
+		messageDraftIds.put(messageId, draftId);
+		if (draftIdStore != null) {
+			try {
+				draftIdStore.put(messageId, draftId.getBytes(StandardCharsets.UTF_8));
+			} catch (final IOException e) {
+				LOGGER.error("write draft id for message {}", messageId, e);
+			}
+		}
+	}
+
+	private void unindexMessage(final String messageId) {
+		if (messageDraftIds.remove(messageId) != null && draftIdStore != null) {
+			try {
+				draftIdStore.remove(messageId);
+			} catch (final IOException e) {
+				LOGGER.error("remove draft id for message {}", messageId, e);
+			}
 		}
 	}
 
 	public Draft getDraft(final String id) throws MessageException {
 		try {
-			return gmail
+			return retryExecutor.execute(gmail
 					.users()
 					.drafts()
 					.get(user, id)
-					.setFormat("raw")
-					.execute();
+					.setFormat("raw"));
 		} catch (final IOException e) {
 			throw new MessageException("get draft " + id, e);
 		}
@@ -168,24 +608,46 @@ public class MessageService {
 
 	public void clearCache() {
 		idMessages.clear();
+		messageDraftIds.clear();
+		draftsListed = false;
+		if (draftIdStore != null) {
+			try {
+				draftIdStore.clear();
+			} catch (final IOException e) {
+				LOGGER.error("clear draft ids", e);
+			}
+		}
+		if (idRaws != null) {
+			try {
+				idRaws.clear();
+			} catch (final IOException e) {
+				LOGGER.error("clear raw messages", e);
+			}
+		}
+		final File[] attachments = attachmentDir.listFiles();
+		if (attachments != null) {
+			for(final File f: attachments) {
+				f.delete();
+			}
+		}
 	}
 
 	public Message insert(String subject, String raw) throws MessageException {
 		try {
-			for(final Message m: find(subject)) {
-				removeMessage(m.getId());
-			}
+			removeMessages(find(subject)
+					.stream()
+					.map(Message::getId)
+					.collect(Collectors.toSet()));
 		} catch (final Exception e) {
 			LOGGER.error("remove older message ", subject);
 		}
 		try {
 			final Message message = new Message();
 			message.setRaw(raw);
-			return gmail
+			return retryExecutor.execute(gmail
 					.users()
 					.messages()
-					.insert(user, message)
-					.execute();
+					.insert(user, message));
 		} catch (final Exception e) {
 			throw new MessageException("insert message " + subject, e);
 		}
@@ -194,12 +656,11 @@ public class MessageService {
 	public Set<Message> find(String subject) throws MessageException {
 		final Set<Message> messages = new LinkedHashSet<>();
 		try {
-			final ListMessagesResponse response = gmail
+			final ListMessagesResponse response = retryExecutor.execute(gmail
 					.users()
 					.messages()
 					.list(user)
-					.setQ("subject:" + subject)
-					.execute();
+					.setQ("subject:" + subject));
 			if (response.getMessages() != null) {
 				for(final Message m: response.getMessages()) {
 					messages.add(m);
@@ -0,0 +1,16 @@
+package net.anfoya.mail.gmail.service;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+import net.anfoya.java.util.VoidCallback;
+
+/**
+ * Delivers the mailbox historyId of Gmail push notifications published on the watched topic.
+ */
+public interface NotificationRelay {
+
+	void open(VoidCallback<BigInteger> onNotification) throws IOException;
+
+	void close();
+}
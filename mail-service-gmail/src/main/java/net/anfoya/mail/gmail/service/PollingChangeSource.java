@@ -0,0 +1,85 @@
+package net.anfoya.mail.gmail.service;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javafx.util.Duration;
+
+/**
+ * Signals on a timer, shorter after activity and longer while idle or in background.
+ */
+public class PollingChangeSource implements ChangeSource {
+	private static final long IDLE_PERIOD_MAX_MS = 60 * 1000;
+	private static final long BACKGROUND_PERIOD_MAX_MS = 5 * 60 * 1000;
+	private static final double BACKOFF = 1.5;
+
+	private final long minPeriod;
+	private final AtomicLong scheduleId;
+
+	private volatile boolean foreground;
+	private volatile long period;
+	private volatile Runnable onChange;
+
+	private Timer timer;
+
+	public PollingChangeSource(final Duration pullPeriod) {
+		minPeriod = (long) pullPeriod.toMillis();
+		period = minPeriod;
+		scheduleId = new AtomicLong();
+		foreground = true;
+	}
+
+	@Override
+	public synchronized void start(final Runnable onChange) {
+		this.onChange = onChange;
+		period = minPeriod;
+		if (timer == null) {
+			timer = new Timer("history-pull-timer", true);
+		}
+		schedule(minPeriod);
+	}
+
+	@Override
+	public synchronized void stop() {
+		scheduleId.incrementAndGet();
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	@Override
+	public void setForeground(final boolean foreground) {
+		this.foreground = foreground;
+		if (foreground) {
+			period = minPeriod;
+			schedule(0);
+		}
+	}
+
+	@Override
+	public void pulled(final boolean active) {
+		final long max = foreground? IDLE_PERIOD_MAX_MS: BACKGROUND_PERIOD_MAX_MS;
+		period = active? minPeriod: Math.min(max, Math.max(minPeriod, (long) (period * BACKOFF)));
+		schedule(period);
+	}
+
+	private void schedule(final long delay) {
+		// a newer schedule replaces the pending one
+		final long id = scheduleId.incrementAndGet();
+		synchronized (this) {
+			if (timer == null) {
+				return;
+			}
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					if (id == scheduleId.get()) {
+						onChange.run();
+					}
+				}
+			}, delay);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package net.anfoya.mail.gmail.service;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.WatchRequest;
+import com.google.api.services.gmail.model.WatchResponse;
+
+/**
+ * Signals on Gmail push notifications, the watch on the topic is renewed daily as it expires after a week.
+ * With no topic the relay is expected to be fed by other means (e.g. an in-process relay).
+ * The fallback source takes over while the relay or the watch are failing.
+ */
+public class PushChangeSource implements ChangeSource {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PushChangeSource.class);
+	private static final long RENEW_PERIOD_MS = 24 * 60 * 60 * 1000;
+
+	private final Gmail gmail;
+	private final RetryExecutor retryExecutor;
+	private final String user;
+	private final String topicName;
+	private final NotificationRelay relay;
+	private final ChangeSource fallback;
+
+	private Timer timer;
+	private boolean relayOpen;
+	private volatile boolean fallingBack;
+
+	public PushChangeSource(final Gmail gmail, final RetryExecutor retryExecutor, final String user, final String topicName, final NotificationRelay relay, final ChangeSource fallback) {
+		this.gmail = gmail;
+		this.retryExecutor = retryExecutor;
+		this.user = user;
+		this.topicName = topicName;
+		this.relay = relay;
+		this.fallback = fallback;
+	}
+
+	@Override
+	public synchronized void start(final Runnable onChange) {
+		if (timer != null) {
+			return;
+		}
+		timer = new Timer("history-watch-timer", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				// a failed relay or watch is tried again on renewal
+				setFallingBack(!open(onChange) || !watch(), onChange);
+				// catch up with changes made before the (re)watch
+				onChange.run();
+			}
+		}, 0, RENEW_PERIOD_MS);
+	}
+
+	private synchronized boolean open(final Runnable onChange) {
+		if (!relayOpen) {
+			try {
+				relay.open(historyId -> {
+					LOGGER.debug("notified historyId: {}", historyId);
+					onChange.run();
+				});
+				relayOpen = true;
+			} catch (final IOException e) {
+				LOGGER.error("open notification relay", e);
+			}
+		}
+		return relayOpen;
+	}
+
+	private boolean watch() {
+		if (topicName == null) {
+			return true;
+		}
+		try {
+			final WatchResponse response = retryExecutor.execute(gmail.users().watch(user, new WatchRequest()
+					.setTopicName(topicName)));
+			LOGGER.info("watching {} until {}", topicName, response.getExpiration());
+			return true;
+		} catch (final IOException e) {
+			LOGGER.error("watch {}", topicName, e);
+			return false;
+		}
+	}
+
+	private synchronized void setFallingBack(final boolean fallingBack, final Runnable onChange) {
+		if (timer == null || fallingBack == this.fallingBack) {
+			return;
+		}
+		this.fallingBack = fallingBack;
+		if (fallingBack) {
+			LOGGER.warn("no push notification, falling back");
+			fallback.start(onChange);
+		} else {
+			fallback.stop();
+		}
+	}
+
+	@Override
+	public void setForeground(final boolean foreground) {
+		if (fallingBack) {
+			fallback.setForeground(foreground);
+		}
+	}
+
+	@Override
+	public void pulled(final boolean active) {
+		if (fallingBack) {
+			fallback.pulled(active);
+		}
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (timer == null) {
+			return;
+		}
+		timer.cancel();
+		timer = null;
+		if (fallingBack) {
+			fallingBack = false;
+			fallback.stop();
+		}
+		if (relayOpen) {
+			relayOpen = false;
+			relay.close();
+		}
+		if (topicName != null) {
+			try {
+				retryExecutor.execute(gmail.users().stop(user));
+			} catch (final IOException e) {
+				LOGGER.error("stop watching {}", topicName, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package net.anfoya.mail.gmail.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.services.gmail.Gmail;
+
+public class QuotaBucket {
+	// Gmail allows 250 quota units per user per second (moving average)
+	public static final int DEFAULT_CAPACITY = 250;
+	public static final int DEFAULT_UNITS_PER_SECOND = 250;
+
+	private static final int DEFAULT_UNITS = 10;
+	private static final Map<Class<?>, Integer> REQUEST_UNITS = new HashMap<>();
+	static {
+		REQUEST_UNITS.put(Gmail.Users.GetProfile.class, 1);
+		REQUEST_UNITS.put(Gmail.Users.Watch.class, 100);
+		REQUEST_UNITS.put(Gmail.Users.Stop.class, 50);
+		REQUEST_UNITS.put(Gmail.Users.History.List.class, 2);
+
+		REQUEST_UNITS.put(Gmail.Users.Labels.List.class, 1);
+		REQUEST_UNITS.put(Gmail.Users.Labels.Get.class, 1);
+		REQUEST_UNITS.put(Gmail.Users.Labels.Create.class, 5);
+		REQUEST_UNITS.put(Gmail.Users.Labels.Update.class, 5);
+		REQUEST_UNITS.put(Gmail.Users.Labels.Delete.class, 5);
+
+		REQUEST_UNITS.put(Gmail.Users.Threads.List.class, 10);
+		REQUEST_UNITS.put(Gmail.Users.Threads.Get.class, 10);
+		REQUEST_UNITS.put(Gmail.Users.Threads.Modify.class, 10);
+		REQUEST_UNITS.put(Gmail.Users.Threads.Trash.class, 10);
+
+		REQUEST_UNITS.put(Gmail.Users.Messages.List.class, 5);
+		REQUEST_UNITS.put(Gmail.Users.Messages.Get.class, 5);
+		REQUEST_UNITS.put(Gmail.Users.Messages.Trash.class, 5);
+		REQUEST_UNITS.put(Gmail.Users.Messages.Insert.class, 25);
+		REQUEST_UNITS.put(Gmail.Users.Messages.Attachments.Get.class, 5);
+
+		REQUEST_UNITS.put(Gmail.Users.Drafts.List.class, 5);
+		REQUEST_UNITS.put(Gmail.Users.Drafts.Get.class, 5);
+		REQUEST_UNITS.put(Gmail.Users.Drafts.Create.class, 10);
+		REQUEST_UNITS.put(Gmail.Users.Drafts.Update.class, 15);
+		REQUEST_UNITS.put(Gmail.Users.Drafts.Delete.class, 10);
+		REQUEST_UNITS.put(Gmail.Users.Drafts.Send.class, 100);
+	}
+
+	public static int getUnits(final AbstractGoogleClientRequest<?> request) {
+		return REQUEST_UNITS.getOrDefault(request.getClass(), DEFAULT_UNITS);
+	}
+
+	private final int capacity;
+	private final double unitsPerMs;
+
+	private double tokens;
+	private long refillTime;
+	private long pausedUntil;
+
+	public QuotaBucket() {
+		this(DEFAULT_CAPACITY, DEFAULT_UNITS_PER_SECOND);
+	}
+
+	public QuotaBucket(final int capacity, final int unitsPerSecond) {
+		this.capacity = capacity;
+		this.unitsPerMs = unitsPerSecond / 1000.0;
+
+		tokens = capacity;
+		refillTime = System.currentTimeMillis();
+		pausedUntil = 0;
+	}
+
+	public void acquire(final AbstractGoogleClientRequest<?> request) throws InterruptedException {
+		acquire(getUnits(request));
+	}
+
+	public void acquire(final int units) throws InterruptedException {
+		final int needed = Math.min(units, capacity);
+		long wait;
+		do {
+			synchronized (this) {
+				final long now = System.currentTimeMillis();
+				refill(now);
+				if (now < pausedUntil) {
+					wait = pausedUntil - now;
+				} else if (tokens >= needed) {
+					tokens -= needed;
+					wait = 0;
+				} else {
+					wait = (long) Math.ceil((needed - tokens) / unitsPerMs);
+				}
+			}
+			if (wait > 0) {
+				Thread.sleep(wait);
+			}
+		} while (wait > 0);
+	}
+
+	public synchronized void pause(final long delay) {
+		// server asked to slow down, drain the bucket and hold every request
+		tokens = 0;
+		pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + delay);
+	}
+
+	private void refill(final long now) {
+		tokens = Math.min(capacity, tokens + (now - refillTime) * unitsPerMs);
+		refillTime = now;
+	}
+}
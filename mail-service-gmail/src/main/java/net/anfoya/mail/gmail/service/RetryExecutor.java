@@ -0,0 +1,170 @@
+package net.anfoya.mail.gmail.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonError.ErrorInfo;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+
+public class RetryExecutor {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RetryExecutor.class);
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	private static final long BASE_DELAY_MS = 500;
+	private static final long MAX_DELAY_MS = 32000;
+
+	private interface Call<T> {
+		T call() throws IOException;
+	}
+
+	private final QuotaBucket quotaBucket;
+	private final int maxAttempts;
+
+	public RetryExecutor(final QuotaBucket quotaBucket) {
+		this(quotaBucket, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	public RetryExecutor(final QuotaBucket quotaBucket, final int maxAttempts) {
+		this.quotaBucket = quotaBucket;
+		this.maxAttempts = maxAttempts;
+	}
+
+	public <T> T execute(final AbstractGoogleClientRequest<T> request) throws IOException {
+		return execute(request, isIdempotent(request));
+	}
+
+	public <T> T execute(final AbstractGoogleClientRequest<T> request, final boolean idempotent) throws IOException {
+		return execute(request, idempotent, request::execute);
+	}
+
+	public HttpResponse executeUnparsed(final AbstractGoogleClientRequest<?> request) throws IOException {
+		// the caller reads the response content and disconnects
+		return execute(request, isIdempotent(request), request::executeUnparsed);
+	}
+
+	private <T> T execute(final AbstractGoogleClientRequest<?> request, final boolean idempotent, final Call<T> call) throws IOException {
+		// a request that isn't idempotent may have been applied before a server error or a timeout,
+		// it is only retried when it was throttled before reaching the service
+		for(int attempt=1;; attempt++) {
+			try {
+				quotaBucket.acquire(request);
+				return call.call();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("waiting for quota");
+			} catch (final GoogleJsonResponseException e) {
+				if (attempt >= maxAttempts || !(idempotent
+						? isRetryable(e.getStatusCode(), e.getDetails())
+						: isThrottled(e.getStatusCode(), e.getDetails()))) {
+					throw e;
+				}
+				backoff(request, attempt, e.getHeaders(), e.getStatusCode());
+			} catch (final SocketTimeoutException e) {
+				if (attempt >= maxAttempts || !idempotent) {
+					throw e;
+				}
+				backoff(request, attempt, null, -1);
+			}
+		}
+	}
+
+	public QuotaBucket getQuotaBucket() {
+		return quotaBucket;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public static boolean isIdempotent(final AbstractGoogleClientRequest<?> request) {
+		switch (request.getRequestMethod()) {
+		case "GET": case "PUT": case "DELETE":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	public boolean isRetryable(final int code, final GoogleJsonError error) {
+		switch (code) {
+		case 500: case 502: case 503: case 504:
+			return true;
+		default:
+			return isThrottled(code, error);
+		}
+	}
+
+	public boolean isThrottled(final int code, final GoogleJsonError error) {
+		switch (code) {
+		case 429:
+			return true;
+		case 403:
+			if (error != null && error.getErrors() != null) {
+				for(final ErrorInfo info: error.getErrors()) {
+					if ("rateLimitExceeded".equals(info.getReason())
+							|| "userRateLimitExceeded".equals(info.getReason())) {
+						return true;
+					}
+				}
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	public long getDelay(final int attempt, final HttpHeaders headers) {
+		// full jitter exponential backoff, never shorter than the server's Retry-After
+		final long max = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt, 16));
+		final long delay = ThreadLocalRandom.current().nextLong(0, max + 1);
+		return Math.max(delay, getRetryAfter(headers));
+	}
+
+	public void sleep(final int attempt, final HttpHeaders headers) throws InterruptedException {
+		final long retryAfter = getRetryAfter(headers);
+		if (retryAfter > 0) {
+			quotaBucket.pause(retryAfter);
+		}
+		Thread.sleep(getDelay(attempt, headers));
+	}
+
+	private void backoff(final AbstractGoogleClientRequest<?> request, final int attempt, final HttpHeaders headers, final int code) throws InterruptedIOException {
+		LOGGER.warn("retry {} after error {} (attempt {}/{})", request.getClass().getSimpleName(), code, attempt, maxAttempts);
+		try {
+			sleep(attempt, headers);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("waiting to retry");
+		}
+	}
+
+	private static long getRetryAfter(final HttpHeaders headers) {
+		final String retryAfter = headers == null? null: headers.getRetryAfter();
+		if (retryAfter == null || retryAfter.isEmpty()) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(retryAfter.trim()) * 1000;
+		} catch (final NumberFormatException e) {
+			try {
+				final ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+				return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+			} catch (final DateTimeParseException ex) {
+				LOGGER.warn("parse Retry-After {}", retryAfter);
+				return 0;
+			}
+		}
+	}
+}
@@ -4,62 +4,99 @@ import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.api.client.googleapis.batch.BatchRequest;
-import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
-import com.google.api.client.googleapis.json.GoogleJsonError;
-import com.google.api.client.http.HttpHeaders;
 import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.HistoryLabelAdded;
+import com.google.api.services.gmail.model.HistoryLabelRemoved;
+import com.google.api.services.gmail.model.HistoryMessageAdded;
+import com.google.api.services.gmail.model.HistoryMessageDeleted;
 import com.google.api.services.gmail.model.ListThreadsResponse;
 import com.google.api.services.gmail.model.Message;
 import com.google.api.services.gmail.model.ModifyThreadRequest;
 import com.google.api.services.gmail.model.Thread;
 
-import net.anfoya.java.cache.FileSerieSerializedMap;
+import net.anfoya.java.util.system.ShutdownHook;
 import net.anfoya.mail.gmail.cache.CacheData;
+import net.anfoya.mail.gmail.cache.CacheStore;
 import net.anfoya.mail.gmail.model.GmailThread;
+import net.anfoya.mail.gmail.service.BatchExecutor.BatchResult;
 
 public class ThreadService {
 	private static final Logger LOGGER = LoggerFactory.getLogger(ThreadService.class);
-	private static final String FILE_PREFIX = System.getProperty("java.io.tmpdir") + File.separatorChar + "fsm-cache-id-threads-";
 	private static final Long MAX_THREAD_FETCH = Long.valueOf(100);
-	private static final Long MAX_THREAD_COUNT = Long.valueOf(1000);
+	public static final int DEFAULT_COUNT_MAX = 1000;
+	private static final int RECONCILE_PAGE_MAX = 5;
+	private static final int PAGE_PARALLELISM = 2;
+
+	// list rows only need a few headers, message bodies are loaded by MessageService
+	private static final String FORMAT = "metadata";
+	private static final List<String> METADATA_HEADERS = Arrays.asList("Subject", "From", "To", "Date", "Received");
 
 	private final Gmail gmail;
+	private final RetryExecutor retryExecutor;
+	private final BatchExecutor batchExecutor;
 	private final LabelService labelService;
 	private final String user;
 
-	private final Map<String, CacheData<Thread>> idThreads;
+	private final CacheStore<Thread> idThreads;
+
+	// find() waits for its pages, they can't be loaded from the pool it runs in
+	private final ExecutorService pageExecutor;
+
+	private volatile int countMax;
 
-	public ThreadService(final Gmail gmail, final LabelService labelService, final String user) {
+	public ThreadService(final Gmail gmail, final RetryExecutor retryExecutor, final BatchExecutor batchExecutor, final LabelService labelService, final String user, final File cacheDir) {
 		this.gmail = gmail;
+		this.retryExecutor = retryExecutor;
+		this.batchExecutor = batchExecutor;
 		this.labelService = labelService;
 		this.user = user;
 
-		idThreads = new FileSerieSerializedMap<>(FILE_PREFIX + user, 50);
+		idThreads = new CacheStore<>(new File(cacheDir, "thread-headers"), Thread.class);
+		countMax = DEFAULT_COUNT_MAX;
+		new ShutdownHook(() -> idThreads.close());
+
+		final AtomicInteger count = new AtomicInteger();
+		pageExecutor = Executors.newFixedThreadPool(PAGE_PARALLELISM, r -> {
+			final java.lang.Thread thread = new java.lang.Thread(r, "gmail-thread-page-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 
 	public Set<Thread> get(final Set<String> ids, boolean cached, Integer nextPage) throws ThreadException {
 		final long start = System.currentTimeMillis();
-		final Set<Thread> threads = new HashSet<>();
+		// in the order of the ids, list order is kept
+		final Set<Thread> threads = new LinkedHashSet<>();
 
 		if (ids.isEmpty()) {
 			return threads;
 		}
 
+		final Map<String, Thread> idFoundThreads = new HashMap<>();
 		final Set<String> notCachedIds;
 		if (!cached) {
 			notCachedIds = ids;
 		} else {
-			notCachedIds = new HashSet<>();
+			notCachedIds = new LinkedHashSet<>();
 			for(final String id: ids) {
 				Thread thread = null;
 				if (idThreads.containsKey(id)) {
@@ -74,12 +111,20 @@ public class ThreadService {
 				if (thread == null) {
 					notCachedIds.add(id);
 				} else {
-					threads.add(thread);
+					idFoundThreads.put(id, thread);
 				}
 			}
 		}
 
-		threads.addAll(load(notCachedIds));
+		for(final Thread t: load(notCachedIds)) {
+			idFoundThreads.put(t.getId(), t);
+		}
+		for(final String id: ids) {
+			final Thread thread = idFoundThreads.get(id);
+			if (thread != null) {
+				threads.add(thread);
+			}
+		}
 
 		if (nextPage != null) {
 			threads.add(nextPageThread(nextPage));
@@ -95,14 +140,10 @@ public class ThreadService {
 		}
 
 		final long start = System.currentTimeMillis();
-		final Set<String> ids = new LinkedHashSet<>();
+		final List<Future<Set<Thread>>> pageThreads = new ArrayList<>();
 		try {
-			ListThreadsResponse threadResponse;
-			threadResponse = gmail.users().threads().list(user)
-					.setFields("nextPageToken,threads(historyId,id)")
-					.setQ(query.toString())
-					.setMaxResults(MAX_THREAD_FETCH)
-					.execute();
+			ListThreadsResponse threadResponse = list(query, null);
+			Set<String> ids = new LinkedHashSet<>();
 			int page = 0;
 			while (threadResponse.getThreads() != null) {
 				for(final Thread t : threadResponse.getThreads()) {
@@ -121,24 +162,81 @@ public class ThreadService {
 				}
 				page++;
 				if (threadResponse.getNextPageToken() != null && page < pageMax) {
-					threadResponse = gmail.users().threads().list(user)
-							.setFields("nextPageToken,threads(historyId,id)")
-							.setQ(query.toString())
-							.setPageToken(threadResponse.getNextPageToken())
-							.setMaxResults(MAX_THREAD_FETCH)
-							.execute();
+					// load this page while listing the next one
+					final Set<String> pageIds = ids;
+					pageThreads.add(pageExecutor.submit(() -> get(pageIds, true, null)));
+					ids = new LinkedHashSet<>();
+					threadResponse = list(query, threadResponse.getNextPageToken());
 				} else {
 					break;
 				}
 			}
-			return get(ids, true, threadResponse.getNextPageToken() == null? null: page);
-		} catch (final IOException e) {
+
+			// last page is loaded on the calling thread, previous pages are merged in order
+			final Set<Thread> lastThreads = get(ids, true, threadResponse.getNextPageToken() == null? null: page);
+			final Set<Thread> threads = new LinkedHashSet<>();
+			for(final Future<Set<Thread>> f: pageThreads) {
+				threads.addAll(f.get());
+			}
+			threads.addAll(lastThreads);
+
+			return threads;
+		} catch (final IOException | InterruptedException e) {
 			throw new ThreadException("get threads for query " + query, e);
+		} catch (final ExecutionException e) {
+			throw new ThreadException("get threads for query " + query, e.getCause());
 		} finally {
+			pageThreads.forEach(f -> f.cancel(false));
 			LOGGER.debug("get threads in {}ms for query {}", System.currentTimeMillis()-start, query);
 		}
 	}
 
+	private ListThreadsResponse list(final String query, final String pageToken) throws IOException {
+		return retryExecutor.execute(gmail.users().threads().list(user)
+				.setFields("nextPageToken,threads(historyId,id)")
+				.setQ(query)
+				.setPageToken(pageToken)
+				.setMaxResults(MAX_THREAD_FETCH));
+	}
+
+	public Set<String> reconcile() throws ThreadException {
+		final long start = System.currentTimeMillis();
+		final Set<String> staleIds = new HashSet<>();
+		int listed = 0;
+		try {
+			// most recent threads first, older ones are checked by find() when listed again
+			ListThreadsResponse response = list(null, null);
+			for(int page = 1; response.getThreads() != null; page++) {
+				for(final Thread t: response.getThreads()) {
+					listed++;
+					if (!idThreads.containsKey(t.getId())) {
+						continue;
+					}
+					boolean stale;
+					try {
+						stale = !idThreads.get(t.getId()).getData().getHistoryId().equals(t.getHistoryId());
+					} catch (final Exception e) {
+						stale = true;
+					}
+					if (stale) {
+						idThreads.remove(t.getId());
+						staleIds.add(t.getId());
+					}
+				}
+				if (response.getNextPageToken() == null || page >= RECONCILE_PAGE_MAX) {
+					break;
+				}
+				response = list(null, response.getNextPageToken());
+			}
+		} catch (final IOException e) {
+			throw new ThreadException("reconcile cached threads", e);
+		} finally {
+			LOGGER.info("reconciled {} threads in {}ms, {} stale", listed, System.currentTimeMillis()-start, staleIds.size());
+		}
+
+		return staleIds;
+	}
+
 	private static Thread nextPageThread(final Integer nextPage) {
 		final Thread thread = new Thread();
 		thread.setId(GmailThread.PAGE_TOKEN_ID);
@@ -155,25 +253,23 @@ public class ThreadService {
 		final long start = System.currentTimeMillis();
 		try {
 			long count = 0;
-			ListThreadsResponse response = gmail.users().threads().list(user)
+			ListThreadsResponse response = retryExecutor.execute(gmail.users().threads().list(user)
 					.setFields("nextPageToken,threads/id")
-					.setQ(query.toString())
-					.execute();
-			while(response.getThreads() != null && count < MAX_THREAD_COUNT) {
+					.setQ(query.toString()));
+			while(response.getThreads() != null && count < countMax) {
 				count += response.getThreads().size();
 				if (response.getNextPageToken() != null) {
 					final String pageToken = response.getNextPageToken();
-					response = gmail.users().threads().list(user)
+					response = retryExecutor.execute(gmail.users().threads().list(user)
 							.setFields("nextPageToken,threads(id)")
 							.setQ(query.toString())
-							.setPageToken(pageToken)
-							.execute();
+							.setPageToken(pageToken));
 				} else {
 					break;
 				}
 			}
-			if (count >= MAX_THREAD_COUNT) {
-				count = -MAX_THREAD_COUNT.longValue();
+			if (count >= countMax) {
+				count = -countMax;
 			}
 			return count;
 		} catch (final IOException e) {
@@ -183,35 +279,24 @@ public class ThreadService {
 		}
 	}
 
+	public void setCountMax(final int countMax) {
+		this.countMax = countMax;
+	}
+
 	public void update(final Set<String> threadIds, final Set<String> labelIds, final boolean add) throws ThreadException {
 		final long start = System.currentTimeMillis();
 		try {
-			final CountDownLatch latch = new CountDownLatch(threadIds.size());
-			final BatchRequest batch = gmail.batch();
-			final JsonBatchCallback<Thread> callback = new JsonBatchCallback<Thread>() {
-				@Override
-				public void onSuccess(final Thread t, final HttpHeaders responseHeaders) throws IOException {
-					idThreads.remove(t.getId());
-					latch.countDown();
-				}
-				@Override
-				public void onFailure(final GoogleJsonError e, final HttpHeaders responseHeaders) throws IOException {
-					LOGGER.error("{} labels {} for threads {}", add? "add": "del", labelIds, threadIds, e.getMessage());
-					latch.countDown();
-				}
-			};
 			final ModifyThreadRequest request;
 			if (add) {
 				request = new ModifyThreadRequest().setAddLabelIds(new ArrayList<>(labelIds));
 			} else {
 				request = new ModifyThreadRequest().setRemoveLabelIds(new ArrayList<>(labelIds));
 			}
-			for(final String id: threadIds) {
-				gmail.users().threads().modify(user, id, request).queue(batch, callback);
-			}
-			batch.execute();
-			latch.await();
-		} catch (final IOException | InterruptedException e) {
+			final BatchResult<Thread> result = batchExecutor.execute(threadIds, id ->
+				gmail.users().threads().modify(user, id, request));
+			result.getResults().forEach(t -> idThreads.remove(t.getId()));
+			result.getFailures().forEach((id, e) -> LOGGER.error("{} labels {} for thread {}: {}", add? "add": "del", labelIds, id, e.getMessage()));
+		} catch (final InterruptedException e) {
 			throw new ThreadException("update<{" + (add? "add": "del") + "}> labels " + labelIds + " for threads " + threadIds, e);
 		} finally {
 			LOGGER.debug("update<{}> labels for threads in {}ms, label ids {}, thread ids {}", add? "add": "del", System.currentTimeMillis()-start, labelIds, threadIds);
@@ -221,25 +306,10 @@ public class ThreadService {
 	public void trash(final Set<String> ids) throws ThreadException {
 		final long start = System.currentTimeMillis();
 		try {
-			final CountDownLatch latch = new CountDownLatch(ids.size());
-			final BatchRequest batch = gmail.batch();
-			final JsonBatchCallback<Thread> callback = new JsonBatchCallback<Thread>() {
-				@Override
-				public void onSuccess(final Thread t, final HttpHeaders responseHeaders) throws IOException {
-					latch.countDown();
-				}
-				@Override
-				public void onFailure(final GoogleJsonError e, final HttpHeaders responseHeaders) throws IOException {
-					LOGGER.error("trash thread", e.getMessage());
-					latch.countDown();
-				}
-			};
-			for(final String id: ids) {
-				gmail.users().threads().trash(user, id).queue(batch, callback);
-			}
-			batch.execute();
-			latch.await();
-		} catch (IOException | InterruptedException e) {
+			final BatchResult<Thread> result = batchExecutor.execute(ids, id ->
+				gmail.users().threads().trash(user, id));
+			result.getFailures().forEach((id, e) -> LOGGER.error("trash thread {}: {}", id, e.getMessage()));
+		} catch (final InterruptedException e) {
 			throw new ThreadException("trash threads " + ids, e);
 		} finally {
 			LOGGER.debug("trash threads in {}ms, thread ids {}", System.currentTimeMillis()-start, ids);
@@ -250,37 +320,157 @@ public class ThreadService {
 		idThreads.clear();
 	}
 
+	public void update(final List<History> history) throws ThreadException {
+		final long start = System.currentTimeMillis();
+		final Map<String, Thread> patched = new HashMap<>();
+		final Map<String, String> addedIdThreadIds = new LinkedHashMap<>();
+		for(final History h: history) {
+			if (h.getMessagesAdded() != null) {
+				for(final HistoryMessageAdded added: h.getMessagesAdded()) {
+					final Message m = added.getMessage();
+					final Thread thread = getCached(m.getThreadId(), patched);
+					if (thread != null) {
+						thread.setHistoryId(h.getId());
+						addedIdThreadIds.put(m.getId(), m.getThreadId());
+					}
+				}
+			}
+			if (h.getMessagesDeleted() != null) {
+				for(final HistoryMessageDeleted deleted: h.getMessagesDeleted()) {
+					final Message m = deleted.getMessage();
+					addedIdThreadIds.remove(m.getId());
+					final Thread thread = getCached(m.getThreadId(), patched);
+					if (thread != null) {
+						thread.setHistoryId(h.getId());
+						thread.getMessages().removeIf(tm -> tm.getId().equals(m.getId()));
+					}
+				}
+			}
+			if (h.getLabelsAdded() != null) {
+				for(final HistoryLabelAdded added: h.getLabelsAdded()) {
+					final Thread thread = getCached(added.getMessage().getThreadId(), patched);
+					if (thread != null) {
+						thread.setHistoryId(h.getId());
+						patchLabels(thread, added.getMessage().getId(), added.getLabelIds(), true);
+					}
+				}
+			}
+			if (h.getLabelsRemoved() != null) {
+				for(final HistoryLabelRemoved removed: h.getLabelsRemoved()) {
+					final Thread thread = getCached(removed.getMessage().getThreadId(), patched);
+					if (thread != null) {
+						thread.setHistoryId(h.getId());
+						patchLabels(thread, removed.getMessage().getId(), removed.getLabelIds(), false);
+					}
+				}
+			}
+		}
+
+		// fetch added messages only, not the whole thread
+		for(final Message m: loadMessages(addedIdThreadIds.keySet())) {
+			final Thread thread = patched.get(m.getThreadId());
+			addedIdThreadIds.remove(m.getId());
+			thread.getMessages().removeIf(tm -> tm.getId().equals(m.getId()));
+			thread.getMessages().add(m);
+			thread.getMessages().sort(Comparator.comparing(tm -> tm.getInternalDate() == null? 0L: tm.getInternalDate()));
+		}
+
+		// threads with messages which couldn't be loaded will be reloaded on next find
+		final Set<String> evictedIds = new HashSet<>(addedIdThreadIds.values());
+		for(final Thread t: patched.values()) {
+			if (evictedIds.contains(t.getId()) || t.getMessages().isEmpty()) {
+				idThreads.remove(t.getId());
+			} else {
+				labelService.clean(t);
+				idThreads.put(t.getId(), new CacheData<>(t));
+			}
+		}
+
+		LOGGER.debug("patched {} threads from {} history records in {}ms", patched.size(), history.size(), System.currentTimeMillis()-start);
+	}
+
+	private Thread getCached(final String id, final Map<String, Thread> patched) {
+		if (patched.containsKey(id)) {
+			return patched.get(id);
+		}
+		if (!idThreads.containsKey(id)) {
+			return null;
+		}
+
+		final Thread thread;
+		try {
+			thread = idThreads.get(id).getData();
+		} catch (final Exception e) {
+			LOGGER.error("get from cache {}", id, e);
+			idThreads.remove(id);
+			return null;
+		}
+		thread.setMessages(thread.getMessages() == null
+				? new ArrayList<>()
+				: new ArrayList<>(thread.getMessages()));
+		patched.put(id, thread);
+
+		return thread;
+	}
+
+	private static void patchLabels(final Thread thread, final String messageId, final List<String> labelIds, final boolean add) {
+		if (labelIds == null) {
+			return;
+		}
+		for(final Message m: thread.getMessages()) {
+			if (m.getId().equals(messageId)) {
+				final Set<String> ids = m.getLabelIds() == null? new LinkedHashSet<>(): new LinkedHashSet<>(m.getLabelIds());
+				if (add) {
+					ids.addAll(labelIds);
+				} else {
+					ids.removeAll(labelIds);
+				}
+				m.setLabelIds(new ArrayList<>(ids));
+				return;
+			}
+		}
+	}
+
+	private Set<Message> loadMessages(final Set<String> ids) throws ThreadException {
+		final Set<Message> messages = new HashSet<>();
+		if (ids.isEmpty()) {
+			return messages;
+		}
+
+		try {
+			final BatchResult<Message> result = batchExecutor.execute(ids, id ->
+				gmail.users().messages().get(user, id)
+					.setFormat(FORMAT)
+					.setMetadataHeaders(METADATA_HEADERS)
+					.setFields("id,threadId,internalDate,labelIds,payload/headers"));
+			messages.addAll(result.getResults());
+			result.getFailures().forEach((id, e) -> LOGGER.error("load message {}: {}", id, e.getMessage()));
+		} catch (final InterruptedException e) {
+			throw new ThreadException("load messages " + ids, e);
+		}
+
+		return messages;
+	}
+
 	private Set<Thread> load(Set<String> ids) throws ThreadException {
 		final long start = System.currentTimeMillis();
-		final Set<Thread> threads = new HashSet<>();
+		final Set<Thread> threads = new LinkedHashSet<>();
 		if (ids.isEmpty()) {
 			return threads;
 		}
 
 		try {
-			final CountDownLatch latch = new CountDownLatch(ids.size());
-			final BatchRequest batch = gmail.batch();
-			final JsonBatchCallback<Thread> callback = new JsonBatchCallback<Thread>() {
-				@Override
-				public void onSuccess(final Thread t, final HttpHeaders responseHeaders) {
-					labelService.clean(t);
-					threads.add(t);
-					idThreads.put(t.getId(), new CacheData<>(t));
-					latch.countDown();
-				}
-				@Override
-				public void onFailure(final GoogleJsonError e, final HttpHeaders responseHeaders) {
-					LOGGER.error("load thread", e.getMessage());
-					latch.countDown();
-				}
-			};
-			for(final String id: ids) {
+			final BatchResult<Thread> result = batchExecutor.execute(ids, id ->
 				gmail.users().threads().get(user, id)
-					.setFields("historyId,id,messages(id,internalDate,labelIds,payload)")
-					.queue(batch, callback);
+					.setFormat(FORMAT)
+					.setMetadataHeaders(METADATA_HEADERS)
+					.setFields("historyId,id,messages(id,internalDate,labelIds,payload/headers)"));
+			for(final Thread t: result.getResults()) {
+				labelService.clean(t);
+				threads.add(t);
+				idThreads.put(t.getId(), new CacheData<>(t));
 			}
-			batch.execute();
-			latch.await();
+			result.getFailures().forEach((id, e) -> LOGGER.error("load thread {}: {}", id, e.getMessage()));
 		} catch (final Exception e) {
 			throw new ThreadException("load threads " + ids, e);
 		} finally {
@@ -0,0 +1,135 @@
+package net.anfoya.mail.gmail.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+public class SegmentStoreTest {
+	private File dir;
+
+	@Before public void init() throws IOException {
+		dir = Files.createTempDirectory("segment-store-test").toFile();
+	}
+
+	@Test public void putGetRemove() throws IOException {
+		final SegmentStore store = new SegmentStore(dir, 1024);
+		for(int i=0; i<100; i++) {
+			store.put("key" + i, ("value" + i).getBytes());
+		}
+		store.put("key1", "updated".getBytes());
+		store.remove("key2");
+
+		Assert.assertEquals("updated", new String(store.get("key1")));
+		Assert.assertNull(store.get("key2"));
+		Assert.assertEquals(99, store.size());
+	}
+
+	@Test public void reopen() throws IOException {
+		SegmentStore store = new SegmentStore(dir, 1024);
+		for(int i=0; i<100; i++) {
+			store.put("key" + i, ("value" + i).getBytes());
+		}
+		store.remove("key2");
+		store.close();
+
+		store = new SegmentStore(dir, 1024);
+		Assert.assertEquals("value1", new String(store.get("key1")));
+		Assert.assertNull(store.get("key2"));
+		Assert.assertEquals(99, store.size());
+	}
+
+	@Test public void tornWrite() throws IOException {
+		SegmentStore store = new SegmentStore(dir);
+		store.put("key", "value".getBytes());
+		store.close();
+
+		final File segment = dir.listFiles((d, n) -> n.endsWith(".seg"))[0];
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(file.length());
+			file.write(new byte[] { 1, 2, 3 });
+		}
+
+		store = new SegmentStore(dir);
+		Assert.assertEquals("value", new String(store.get("key")));
+		store.put("other", "value".getBytes());
+		store.close();
+
+		store = new SegmentStore(dir);
+		Assert.assertEquals(2, store.size());
+	}
+
+	@Test public void badChecksum() throws IOException {
+		SegmentStore store = new SegmentStore(dir);
+		store.put("key1", "value1".getBytes());
+		store.put("key2", "value2".getBytes());
+		store.close();
+
+		// last byte is in the value of key2
+		final File segment = dir.listFiles((d, n) -> n.endsWith(".seg"))[0];
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(file.length() - 1);
+			file.write('X');
+		}
+
+		store = new SegmentStore(dir);
+		Assert.assertEquals("value1", new String(store.get("key1")));
+		Assert.assertNull(store.get("key2"));
+		Assert.assertEquals(1, store.size());
+	}
+
+	@Test public void hintRebuild() throws IOException {
+		SegmentStore store = new SegmentStore(dir, 1024);
+		for(int i=0; i<100; i++) {
+			store.put("key" + i, ("value" + i).getBytes());
+		}
+		store.close();
+
+		final File hint = dir.listFiles((d, n) -> n.endsWith(".hint"))[0];
+		Files.write(hint.toPath(), new byte[] { 1, 2, 3 });
+
+		// keys are read from the segment, then its hints are written again
+		store = new SegmentStore(dir, 1024);
+		Assert.assertEquals(100, store.size());
+		Assert.assertEquals("value1", new String(store.get("key1")));
+		store.close();
+		Assert.assertTrue(hint.length() > 3);
+
+		store = new SegmentStore(dir, 1024);
+		Assert.assertEquals(100, store.size());
+	}
+
+	@Test public void compaction() throws IOException, InterruptedException {
+		final SegmentStore store = new SegmentStore(dir, 1024, 0);
+		final byte[] value = new byte[100];
+		for(int i=0; i<200; i++) {
+			store.put("key" + i % 10, value);
+		}
+		final int segments = getSegmentCount();
+
+		// compaction runs in the background, each write checks whether another one is needed
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (getSegmentCount() > 5 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+			store.remove("none");
+		}
+		Assert.assertTrue(getSegmentCount() < segments);
+		Assert.assertTrue(getSegmentCount() <= 5);
+		Assert.assertEquals(10, store.size());
+		Assert.assertEquals(100, store.get("key3").length);
+		store.close();
+
+		final SegmentStore reopened = new SegmentStore(dir, 1024, 0);
+		Assert.assertEquals(10, reopened.size());
+		Assert.assertEquals(100, reopened.get("key3").length);
+	}
+
+	private int getSegmentCount() {
+		return dir.listFiles((d, n) -> n.endsWith(".seg")).length;
+	}
+}
@@ -0,0 +1,183 @@
+package net.anfoya.mail.gmail.model;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.mail.internet.MailDateFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import com.google.api.services.gmail.model.Thread;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GmailThreadBenchmark {
+
+	public static void main(final String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(GmailThreadBenchmark.class.getSimpleName())
+				.build())
+			.run();
+	}
+
+	@Param({ "1", "10" })
+	private int messageCount;
+
+	private Thread thread;
+	private LabelDictionary dictionary;
+
+	@Setup
+	public void init() {
+		final List<Message> messages = new ArrayList<>();
+		for(int i=0; i<messageCount; i++) {
+			messages.add(new Message()
+					.setId("message" + i)
+					.setInternalDate(1500000000000L + i)
+					.setLabelIds(Arrays.asList("INBOX", "UNREAD", "Label_" + i))
+					.setPayload(new MessagePart().setHeaders(Arrays.asList(
+							new MessagePartHeader().setName("Received").setValue("by 10.0.0.1 with SMTP id abc; Fri, 14 Jul 2017 04:40:00 -0700 (PDT)"),
+							new MessagePartHeader().setName("Date").setValue("Fri, 14 Jul 2017 13:40:00 +0200"),
+							new MessagePartHeader().setName("From").setValue("\"Sender " + i + "\" <sender" + i + "@example.com>"),
+							new MessagePartHeader().setName("To").setValue("Recipient <recipient@example.com>"),
+							new MessagePartHeader().setName("Subject").setValue("subject of the thread")))));
+		}
+		thread = new Thread().setId("thread").setMessages(messages);
+		dictionary = new LabelDictionary();
+	}
+
+	@Benchmark
+	public GmailThread create() {
+		return new GmailThread(thread, dictionary);
+	}
+
+	@Benchmark
+	public GmailThread baseline() {
+		return MultiPass.create(thread);
+	}
+
+	// previous construction, one pass over the messages or the headers per field
+	private static class MultiPass {
+		private static GmailThread create(final Thread thread) {
+			return new GmailThread(thread.getId()
+					, findHeader(thread, "Subject")
+					, getMessageIds(thread)
+					, getLastMessage(thread).getId()
+					, getTagIds(thread)
+					, findSender(thread)
+					, findRecipients(thread)
+					, findReceivedDate(thread));
+		}
+
+		private static Set<String> findRecipients(final Thread thread) {
+			return findHeaders(thread, "To")
+					.stream()
+					.map(s -> cleanAddress(s))
+					.collect(Collectors.toSet());
+		}
+
+		private static String findSender(final Thread thread) {
+			if (thread.getMessages().size() == 1
+					&& thread.getMessages().get(0).getLabelIds().contains(GmailTag.SENT.getId())) {
+				return findRecipients(thread)
+						.stream()
+						.reduce("", (s, r) -> s.length() == 0 ? r : ", " + r);
+			}
+			return cleanAddress(findHeader(thread, "From"));
+		}
+
+		private static String cleanAddress(String address) {
+			final int index = address.indexOf(" <");
+			if (index != -1) {
+				address = address.substring(0, index);
+			}
+			return address.replaceAll("\"|'", "");
+		}
+
+		private static Date findReceivedDate(final Thread thread) {
+			String received = findHeader(thread, "Received");
+			if (received.isEmpty()) {
+				received = findHeader(thread, "Date");
+			}
+			try {
+				received = received.substring(received.lastIndexOf(";") + 1, received.length()).trim();
+				return new MailDateFormat().parse(received);
+			} catch (final ParseException e) {
+				return new Date();
+			}
+		}
+
+		private static Set<String> getMessageIds(final Thread thread) {
+			final Set<String> messageIds = new LinkedHashSet<>();
+			for (final Message m : thread.getMessages()) {
+				messageIds.add(m.getId());
+			}
+			return messageIds;
+		}
+
+		private static Message getLastMessage(final Thread thread) {
+			final List<Message> messages = thread.getMessages();
+			Message last = null;
+			for(int i=messages.size()-1; i>=0; i--) {
+				last = messages.get(i);
+				if (last.getLabelIds() == null || !last.getLabelIds().contains(GmailTag.SENT.getId())) {
+					break;
+				}
+			}
+			return last;
+		}
+
+		private static Set<String> getTagIds(final Thread thread) {
+			return thread
+					.getMessages()
+					.stream()
+					.filter(m -> m.getLabelIds() != null)
+					.flatMap(m -> m.getLabelIds().stream())
+					.collect(Collectors.toSet());
+		}
+
+		private static String findHeader(final Thread thread, final String key) {
+			final Set<String> headers = findHeaders(thread, key);
+			return headers.isEmpty()? "": headers.iterator().next();
+		}
+
+		private static Set<String> findHeaders(final Thread thread, final String key) {
+			final Set<String> headers = new LinkedHashSet<>();
+			final Message last = getLastMessage(thread);
+			if (last.getPayload() != null && last.getPayload().getHeaders() != null) {
+				last.getPayload().getHeaders().forEach(h -> {
+					if (!h.getValue().isEmpty() && h.getName().equalsIgnoreCase(key)) {
+						headers.add(h.getValue());
+					}
+				});
+			}
+			return headers;
+		}
+	}
+}
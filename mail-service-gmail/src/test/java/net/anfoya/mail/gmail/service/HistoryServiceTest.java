@@ -0,0 +1,102 @@
+package net.anfoya.mail.gmail.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+
+import junit.framework.Assert;
+
+public class HistoryServiceTest {
+	private static final long REQUEST_MS = 50;
+
+	private Semaphore requests;
+	private AtomicInteger inFlight;
+	private AtomicInteger inFlightMax;
+	private HistoryService service;
+	private ManualChangeSource source;
+
+	@Before public void init() throws IOException {
+		requests = new Semaphore(0);
+		inFlight = new AtomicInteger();
+		inFlightMax = new AtomicInteger();
+		final MockHttpTransport transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(final String method, final String url) throws IOException {
+				return new MockLowLevelHttpRequest(url) {
+					@Override
+					public LowLevelHttpResponse execute() throws IOException {
+						inFlightMax.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+						try {
+							Thread.sleep(REQUEST_MS);
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} finally {
+							inFlight.decrementAndGet();
+							requests.release();
+						}
+						// same historyId for the profile and the history, nothing changed
+						return new MockLowLevelHttpResponse()
+								.setContentType(Json.MEDIA_TYPE)
+								.setContent("{\"historyId\":\"100\"}");
+					}
+				};
+			}
+		};
+		final Gmail gmail = new Gmail.Builder(transport, new JacksonFactory(), null).setApplicationName("test").build();
+		final File cacheDir = Files.createTempDirectory("history-service-test").toFile();
+		service = new HistoryService(gmail, new RetryExecutor(new QuotaBucket()), "me", cacheDir);
+		source = new ManualChangeSource();
+		service.start(source);
+	}
+
+	@Test public void pullOnSignal() throws InterruptedException {
+		Assert.assertFalse(requests.tryAcquire(REQUEST_MS * 2, TimeUnit.MILLISECONDS));
+
+		source.signal();
+		Assert.assertTrue(requests.tryAcquire(1, TimeUnit.SECONDS));
+
+		service.stop();
+		Assert.assertFalse(source.isStarted());
+	}
+
+	@Test public void noOverlap() throws InterruptedException {
+		for(int i=0; i<20; i++) {
+			source.signal();
+			Thread.sleep(REQUEST_MS / 5);
+		}
+		// signals received during a pull are coalesced into one more pull
+		Thread.sleep(REQUEST_MS * 4);
+		final int count = requests.drainPermits();
+
+		Assert.assertEquals(1, inFlightMax.get());
+		Assert.assertTrue(count > 1);
+		Assert.assertTrue(count < 20);
+	}
+
+	@Test public void stopDuringPull() throws InterruptedException {
+		source.signal();
+		while (inFlight.get() == 0) {
+			Thread.sleep(1);
+		}
+
+		// doesn't wait for the pull in flight
+		service.stop();
+		Assert.assertEquals(1, inFlight.get());
+		Assert.assertFalse(source.isStarted());
+	}
+}
@@ -0,0 +1,105 @@
+package net.anfoya.mail.gmail.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+
+import junit.framework.Assert;
+
+public class LabelServiceTest {
+	private static final String USER = "me";
+	private static final String BOUNDARY = "batch_test";
+	private static final Pattern DELETED_ID = Pattern.compile("DELETE \\S*/labels/(\\w+)");
+
+	// status of the delete per label id, deleted when missing
+	private Map<String, Integer> idStatus;
+	private LabelService service;
+
+	@Before public void init() throws IOException {
+		idStatus = new HashMap<>();
+		final MockHttpTransport transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(final String method, final String url) throws IOException {
+				return new MockLowLevelHttpRequest(url) {
+					@Override
+					public LowLevelHttpResponse execute() throws IOException {
+						if (url.contains("/batch")) {
+							return new MockLowLevelHttpResponse()
+									.setContentType("multipart/mixed; boundary=" + BOUNDARY)
+									.setContent(getBatchContent(getContentAsString()));
+						}
+						return new MockLowLevelHttpResponse()
+								.setContentType(Json.MEDIA_TYPE)
+								.setContent("{\"labels\":["
+										+ "{\"id\":\"Label_1\",\"name\":\"section\"},"
+										+ "{\"id\":\"Label_2\",\"name\":\"section/tag\"},"
+										+ "{\"id\":\"Label_3\",\"name\":\"other\"}]}");
+					}
+				};
+			}
+		};
+		final Gmail gmail = new Gmail.Builder(transport, new JacksonFactory(), null).setApplicationName("test").build();
+		final RetryExecutor retryExecutor = new RetryExecutor(new QuotaBucket(), 2);
+		service = new LabelService(gmail, retryExecutor, new BatchExecutor(gmail, retryExecutor)
+				, USER, Files.createTempDirectory("label-service-test").toFile());
+	}
+
+	@Test public void batchRemove() throws LabelException {
+		service.remove(new HashSet<>(Arrays.asList("Label_1", "Label_2")));
+
+		Assert.assertNull(service.get("Label_1"));
+		Assert.assertNull(service.get("Label_2"));
+		Assert.assertNotNull(service.get("Label_3"));
+	}
+
+	@Test public void batchRemoveFailure() throws LabelException {
+		idStatus.put("Label_1", 400);
+		idStatus.put("Label_2", 404);
+		service.remove(new HashSet<>(Arrays.asList("Label_1", "Label_2")));
+
+		// kept when the delete failed, removed when it was already gone
+		Assert.assertNotNull(service.get("Label_1"));
+		Assert.assertNull(service.get("Label_2"));
+	}
+
+	private String getBatchContent(final String request) {
+		// one part per request, in the order they were queued
+		final StringBuilder content = new StringBuilder();
+		final Matcher matcher = DELETED_ID.matcher(request);
+		for(int i=1; matcher.find(); i++) {
+			final int status = idStatus.getOrDefault(matcher.group(1), 204);
+			content.append("--").append(BOUNDARY).append("\r\n")
+				.append("Content-Type: application/http\r\n")
+				.append("Content-ID: <response-").append(i).append(">\r\n")
+				.append("\r\n");
+			if (status == 204) {
+				content.append("HTTP/1.1 204 No Content\r\n")
+					.append("\r\n");
+			} else {
+				content.append("HTTP/1.1 ").append(status).append(" Error\r\n")
+					.append("Content-Type: application/json; charset=UTF-8\r\n")
+					.append("\r\n")
+					.append("{\"error\":{\"code\":").append(status).append(",\"message\":\"error\"}}\r\n");
+			}
+		}
+		content.append("--").append(BOUNDARY).append("--\r\n");
+		return content.toString();
+	}
+}
@@ -0,0 +1,29 @@
+package net.anfoya.mail.gmail.service;
+
+import java.math.BigInteger;
+
+import net.anfoya.java.util.VoidCallback;
+
+/**
+ * In-process relay, notifications are published by the test.
+ */
+public class LocalNotificationRelay implements NotificationRelay {
+	private volatile VoidCallback<BigInteger> onNotification;
+
+	@Override
+	public void open(final VoidCallback<BigInteger> onNotification) {
+		this.onNotification = onNotification;
+	}
+
+	@Override
+	public void close() {
+		onNotification = null;
+	}
+
+	public void publish(final BigInteger historyId) {
+		final VoidCallback<BigInteger> onNotification = this.onNotification;
+		if (onNotification != null) {
+			onNotification.call(historyId);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package net.anfoya.mail.gmail.service;
+
+/**
+ * Change source signalled by the test.
+ */
+public class ManualChangeSource implements ChangeSource {
+	private volatile Runnable onChange;
+
+	@Override
+	public void start(final Runnable onChange) {
+		this.onChange = onChange;
+	}
+
+	@Override
+	public void stop() {
+		onChange = null;
+	}
+
+	public boolean isStarted() {
+		return onChange != null;
+	}
+
+	public void signal() {
+		final Runnable onChange = this.onChange;
+		if (onChange != null) {
+			onChange.run();
+		}
+	}
+}
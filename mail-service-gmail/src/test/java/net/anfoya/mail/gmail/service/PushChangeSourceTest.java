@@ -0,0 +1,58 @@
+package net.anfoya.mail.gmail.service;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+import net.anfoya.java.util.VoidCallback;
+
+public class PushChangeSourceTest {
+
+	@Test public void notification() throws InterruptedException {
+		final LocalNotificationRelay relay = new LocalNotificationRelay();
+		final ManualChangeSource fallback = new ManualChangeSource();
+		final PushChangeSource source = new PushChangeSource(null, null, "me", null, relay, fallback);
+		final Semaphore changes = new Semaphore(0);
+
+		source.start(() -> changes.release());
+		// initial catch up
+		Assert.assertTrue(changes.tryAcquire(1, TimeUnit.SECONDS));
+		Assert.assertFalse(fallback.isStarted());
+
+		relay.publish(BigInteger.TEN);
+		Assert.assertTrue(changes.tryAcquire(1, TimeUnit.SECONDS));
+
+		source.stop();
+		relay.publish(BigInteger.ONE);
+		Assert.assertFalse(changes.tryAcquire(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test public void fallback() throws InterruptedException {
+		final NotificationRelay relay = new NotificationRelay() {
+			@Override
+			public void open(final VoidCallback<BigInteger> onNotification) throws IOException {
+				throw new IOException("relay unavailable");
+			}
+			@Override
+			public void close() {
+			}
+		};
+		final ManualChangeSource fallback = new ManualChangeSource();
+		final PushChangeSource source = new PushChangeSource(null, null, "me", null, relay, fallback);
+		final Semaphore changes = new Semaphore(0);
+
+		source.start(() -> changes.release());
+		Assert.assertTrue(changes.tryAcquire(1, TimeUnit.SECONDS));
+		Assert.assertTrue(fallback.isStarted());
+
+		fallback.signal();
+		Assert.assertTrue(changes.tryAcquire(1, TimeUnit.SECONDS));
+
+		source.stop();
+		Assert.assertFalse(fallback.isStarted());
+	}
+}
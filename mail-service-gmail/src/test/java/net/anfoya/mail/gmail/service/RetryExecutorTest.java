@@ -0,0 +1,86 @@
+package net.anfoya.mail.gmail.service;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Draft;
+
+import junit.framework.Assert;
+
+public class RetryExecutorTest {
+	private static final String USER = "me";
+
+	private AtomicInteger requestCount;
+	private boolean timeout;
+	private Gmail gmail;
+	private RetryExecutor retryExecutor;
+
+	@Before public void init() {
+		requestCount = new AtomicInteger();
+		timeout = false;
+		final MockHttpTransport transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(final String method, final String url) throws IOException {
+				return new MockLowLevelHttpRequest(url) {
+					@Override
+					public LowLevelHttpResponse execute() throws IOException {
+						requestCount.incrementAndGet();
+						if (timeout) {
+							throw new SocketTimeoutException("read timed out");
+						}
+						return new MockLowLevelHttpResponse()
+								.setStatusCode(503)
+								.setContentType(Json.MEDIA_TYPE)
+								.setContent("{\"error\":{\"code\":503,\"message\":\"backend error\"}}");
+					}
+				};
+			}
+		};
+		gmail = new Gmail.Builder(transport, new JacksonFactory(), null).setApplicationName("test").build();
+		retryExecutor = new RetryExecutor(new QuotaBucket(), 2);
+	}
+
+	@Test public void sendNotRetriedOnServerError() throws IOException {
+		try {
+			retryExecutor.execute(gmail.users().drafts().send(USER, new Draft().setId("draft")));
+			Assert.fail();
+		} catch (final GoogleJsonResponseException e) {
+			Assert.assertEquals(503, e.getStatusCode());
+		}
+		Assert.assertEquals(1, requestCount.get());
+	}
+
+	@Test public void sendNotRetriedOnTimeout() throws IOException {
+		timeout = true;
+		try {
+			retryExecutor.execute(gmail.users().drafts().send(USER, new Draft().setId("draft")));
+			Assert.fail();
+		} catch (final SocketTimeoutException e) {
+			// expected
+		}
+		Assert.assertEquals(1, requestCount.get());
+	}
+
+	@Test public void getRetriedOnServerError() throws IOException {
+		try {
+			retryExecutor.execute(gmail.users().drafts().get(USER, "draft"));
+			Assert.fail();
+		} catch (final GoogleJsonResponseException e) {
+			Assert.assertEquals(503, e.getStatusCode());
+		}
+		Assert.assertEquals(2, requestCount.get());
+	}
+}
@@ -19,6 +19,7 @@ import javafx.beans.property.ReadOnlyBooleanWrapper;
 import javafx.util.Callback;
 import net.anfoya.mail.model.SimpleContact;
 import net.anfoya.mail.model.SimpleMessage;
+import net.anfoya.mail.service.ContactIndex;
 import net.anfoya.mail.service.MailException;
 import net.anfoya.mail.service.MailService;
 import net.anfoya.mail.yahoo.model.YahooSection;
@@ -109,6 +110,12 @@ implements MailService<YahooSection, YahooTag, YahooThread, SimpleMessage, Simpl
 
 	}
 
+	@Override
+	public void setForeground(final boolean foreground) {
+		// TODO Auto-generated method stub
+
+	}
+
 	@Override
 	public void clearCache() {
 		// TODO Auto-generated method stub
@@ -121,6 +128,12 @@ implements MailService<YahooSection, YahooTag, YahooThread, SimpleMessage, Simpl
 
 	}
 
+	@Override
+	public void addOnUpdateThreadList(Callback<Set<YahooThread>, Void> callback) {
+		// TODO Auto-generated method stub
+
+	}
+
 	@Override
 	public void addOnNewMessage(Callback<Set<YahooThread>, Void> callback) {
 		// TODO Auto-generated method stub
@@ -192,6 +205,23 @@ implements MailService<YahooSection, YahooTag, YahooThread, SimpleMessage, Simpl
 		return null;
 	}
 
+	@Override
+	public boolean isCached(String id) {
+		return false;
+	}
+
+	@Override
+	public void getMessages(Set<String> ids, Callback<SimpleMessage, Void> callback, Callback<String, Void> failedCallback) throws MailException {
+		for(final String id: ids) {
+			final SimpleMessage message = getMessage(id);
+			if (message == null) {
+				failedCallback.call(id);
+			} else {
+				callback.call(message);
+			}
+		}
+	}
+
 	@Override
 	public void remove(SimpleMessage message) throws MailException {
 		// TODO Auto-generated method stub
@@ -233,6 +263,12 @@ implements MailService<YahooSection, YahooTag, YahooThread, SimpleMessage, Simpl
 		return null;
 	}
 
+	@Override
+	public ContactIndex<SimpleContact> getContactIndex() throws MailException {
+		// TODO Auto-generated method stub
+		return new ContactIndex<>(Collections.emptySet());
+	}
+
 	@Override
 	public void persistBytes(String id, byte[] bytes) throws MailException {
 		// TODO Auto-generated method stub